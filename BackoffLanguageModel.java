@@ -0,0 +1,219 @@
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/**
+ * A variable-order language model. Counts the followers of the windows of
+ * all the lengths (orders) 1 to windowLength, in a single pass over the text,
+ * and also counts every character of the text (order 0).
+ * When generating, draws the next character from the followers of the longest
+ * tail of the text that was seen in training, backing off to shorter tails
+ * when a window is missing. So generation never runs into a dead end, and the
+ * initial text may be shorter than the window length.
+ * Each order has its own WindowIndex, whose rolling hash is kept up to date
+ * for the tail of the text, so backing off to a shorter order costs a single
+ * lookup. The followers are FollowerTables that store only counts, and are
+ * drawn by their counts, so training never computes probabilities.
+ * Takes more memory than a LanguageModel of the same window length, since it
+ * also keeps the windows of all the shorter orders.
+ */
+public class BackoffLanguageModel {
+
+    // The followers of the windows of each order: indexes[k] maps the windows
+    // of length k to their followers (indexes[0] is not used).
+    private final WindowIndex<FollowerTable>[] indexes;
+
+    // The counts of all the characters of the training texts (order 0)
+    private final FollowerTable characters;
+
+    // The longest window length used in this model.
+    private final int windowLength;
+
+    // The random number generator used by this model.
+    private final Random randomGenerator;
+
+    /**
+     * Constructs a backoff model with the given longest window length and a
+     * given seed value. Generating texts from this model multiple times with
+     * the same seed value will produce the same random texts.
+     */
+    public BackoffLanguageModel(int windowLength, int seed) {
+        this(windowLength, new Random(seed));
+    }
+
+    /**
+     * Constructs a backoff model with the given longest window length.
+     * Generating texts from this model multiple times will produce
+     * different random texts.
+     */
+    public BackoffLanguageModel(int windowLength) {
+        this(windowLength, new Random());
+    }
+
+    @SuppressWarnings("unchecked")
+    private BackoffLanguageModel(int windowLength, Random randomGenerator) {
+        this.windowLength = windowLength;
+        this.randomGenerator = randomGenerator;
+        indexes = (WindowIndex<FollowerTable>[]) new WindowIndex<?>[windowLength + 1];
+        for (int k = 1; k <= windowLength; k++) {
+            indexes[k] = new WindowIndex<FollowerTable>(k);
+        }
+        characters = new FollowerTable(false);
+    }
+
+    /** Returns the longest window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /**
+     * Returns the number of windows of the given order (length) in this model.
+     * For order 0, returns the number of different characters that were seen
+     * in training. Throws an IllegalArgumentException if the order is negative
+     * or larger than the window length.
+     */
+    public int getWindowCount(int order) {
+        if (order < 0 || order > windowLength) {
+            throw new IllegalArgumentException("The order must be between 0 and "
+                    + windowLength + ": " + order);
+        }
+        if (order == 0) {
+            return characters.getSize();
+        }
+        return indexes[order].size();
+    }
+
+    /**
+     * Returns the followers of the given window, whose length is its order,
+     * or null if the window was not seen in training, or is longer than the
+     * window length. The followers of the empty window are the counts of all
+     * the characters. The returned table must not be changed.
+     */
+    public FollowerTable getFollowers(String window) {
+        if (window.isEmpty()) {
+            return characters;
+        }
+        if (window.length() > windowLength) {
+            return null;
+        }
+        return indexes[window.length()].get(window);
+    }
+
+    /** Builds the model from the text in the given file (the corpus). */
+    public void train(String fileName) {
+        In in = new In(fileName);
+        trainText(in.readAll().replace("\r", ""));
+    }
+
+    /**
+     * Adds the given text to this model. The text is treated as a separate
+     * document: its first windows do not continue the previous text.
+     * Counts the windows of all the orders in a single pass: at each position,
+     * the hash of the window of each order that ends there is rolled from the
+     * window of the same order that ended at the previous position.
+     */
+    public void trainText(CharSequence text) {
+        long[] hashes = new long[windowLength + 1];
+        for (int i = 0; i < text.length(); i++) {
+            char c = text.charAt(i);
+            characters.update(c);
+            for (int k = 1; k <= Math.min(i, windowLength); k++) {
+                // The window of order k that ends before position i
+                WindowIndex<FollowerTable> index = indexes[k];
+                if (i == k) {
+                    hashes[k] = index.hash(text, 0);
+                } else {
+                    hashes[k] = index.roll(hashes[k], text.charAt(i - k - 1), text.charAt(i - 1));
+                }
+                FollowerTable table = index.get(hashes[k], text, i - k);
+                if (table == null) {
+                    table = new FollowerTable(false);
+                    index.put(hashes[k], text.subSequence(i - k, i).toString(), table);
+                }
+                table.update(c);
+            }
+        }
+    }
+
+    // Returns the followers of the longest tail of the given text (up to the
+    // window length) that was seen in training, or the counts of all the
+    // characters if no tail was seen. Given the hash of the tail of each order.
+    private FollowerTable longestContext(CharSequence text, long[] hashes) {
+        int end = text.length();
+        for (int k = Math.min(end, windowLength); k >= 1; k--) {
+            FollowerTable table = indexes[k].get(hashes[k], text, end - k);
+            if (table != null) {
+                return table;
+            }
+        }
+        return characters;
+    }
+
+    /**
+     * Generates a random text, based on the counts that were learned during
+     * training. Each character is drawn from the followers of the longest tail
+     * of the text that was seen in training.
+     */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /**
+     * Generates a random text, drawing its characters from the given random
+     * number generator instead of the generator of this model.
+     */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        // Nothing was trained: there is nothing to draw from
+        if (characters.getTotal() == 0) {
+            return initialText;
+        }
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+        // hashes[k] is the hash of the tail of order k of the generated text
+        long[] hashes = new long[windowLength + 1];
+        for (int k = 1; k <= Math.min(generatedText.length(), windowLength); k++) {
+            hashes[k] = indexes[k].hash(generatedText, generatedText.length() - k);
+        }
+        while (generatedText.length() < textLength) {
+            FollowerTable table = longestContext(generatedText, hashes);
+            char c = table.charAtCount(random.nextInt(table.getTotal()));
+            int length = generatedText.length();
+            generatedText.append(c);
+            for (int k = 1; k <= Math.min(length + 1, windowLength); k++) {
+                if (k == length + 1) {
+                    // The text just became long enough for a tail of this order
+                    hashes[k] = indexes[k].hash(generatedText, 0);
+                } else {
+                    hashes[k] = indexes[k].roll(hashes[k], generatedText.charAt(length - k), c);
+                }
+            }
+        }
+        return generatedText.toString();
+    }
+
+    /** Returns a string with the number of windows of each order of this model. */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        str.append("order 0 : " + characters.getSize() + " characters\n");
+        for (int k = 1; k <= windowLength; k++) {
+            str.append("order " + k + " : " + indexes[k].size() + " windows\n");
+        }
+        return str.toString();
+    }
+
+    public static void main(String[] args) {
+        int windowLength = Integer.parseInt(args[0]);
+        String initialText = args[1];
+        int generatedTextLength = Integer.parseInt(args[2]);
+        Boolean randomGeneration = args[3].equals("random");
+        String fileName = args[4];
+
+        BackoffLanguageModel lm;
+        if (randomGeneration)
+            lm = new BackoffLanguageModel(windowLength);
+        else
+            lm = new BackoffLanguageModel(windowLength, 20);
+
+        lm.train(fileName);
+        System.out.println(lm.generate(initialText, generatedTextLength));
+    }
+}
@@ -0,0 +1,441 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.CharacterCodingException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.Arrays;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/**
+ * A language model for texts whose characters are all single bytes: ASCII or
+ * Latin-1 characters (at most U+00FF), like both bundled corpora.
+ * Reads the raw bytes of a corpus, without decoding them through a Scanner
+ * into a String, if they are pure ASCII. Otherwise, a file that is valid UTF-8
+ * (like the corpora that In reads) is decoded once, and must hold only Latin-1
+ * characters; a file that is not valid UTF-8 is read as ISO-8859-1, one
+ * character per byte. In both cases, the text is kept as one byte per
+ * character. Counts the windows
+ * of the bytes directly, through a WindowIndex over a view of the bytes, so
+ * a window holds no List, CharData or String objects.
+ * The model builds an alphabet from its corpus: the bytes that occur in it,
+ * numbered by codes 0 to alphabetSize - 1 in the order in which they first
+ * occur. The followers of each window are a single int array, in one of two
+ * forms, chosen by the occupancy of the window (its number of followers,
+ * relative to the size of the alphabet):
+ *   sparse  the codes and counts of the followers, sorted by code, for
+ *           windows with few followers (most windows, in long windows)
+ *   dense   a count per code of the alphabet, for windows whose followers
+ *           occupy more than 1 / DENSE_OCCUPANCY of the alphabet, and for
+ *           the hottest windows (seen HOT_TOTAL times), so counting a
+ *           follower is a single increment
+ * A window starts sparse, and becomes dense when it gets enough followers,
+ * or is seen often enough.
+ * Followers are drawn by their counts, so training never computes
+ * probabilities. Generates different texts than a LanguageModel with the
+ * same seed (the followers are in code order), but with the same distribution.
+ * Texts with characters above U+00FF are rejected, and must be trained with a
+ * LanguageModel (see readLatin1 and main).
+ */
+public class ByteLanguageModel {
+
+    // The number of distinct bytes
+    private static final int BYTES = 256;
+
+    // The followers of a window become dense when they occupy more than
+    // 1 / DENSE_OCCUPANCY of the alphabet. Beyond that point, a sparse array
+    // would take at least half the memory of a dense one.
+    private static final int DENSE_OCCUPANCY = 4;
+
+    // The followers of a window also become dense when its total count
+    // reaches HOT_TOTAL, so the hottest windows are counted by a single increment
+    private static final int HOT_TOTAL = 64;
+
+    // The layout of an array of followers: the total count of the window,
+    // the number of followers (or DENSE), and then the followers: a count per
+    // code if dense, and a code and a count per follower if sparse.
+    private static final int TOTAL = 0;
+    private static final int SIZE = 1;
+    private static final int FIRST = 2;
+
+    // Marks a dense array of followers, in place of its number of followers
+    private static final int DENSE = -1;
+
+    // The followers of each window, as arrays of the layout above
+    private final WindowIndex<int[]> index;
+
+    // The alphabet of this model: codes[b] is the code of byte b plus 1 (0 if
+    // b is not in the alphabet), and symbols[c] is the character with code c.
+    private final int[] codes;
+    private final char[] symbols;
+    private int alphabetSize;
+
+    // The window length used in this model.
+    private final int windowLength;
+
+    // The random number generator used by this model.
+    private final Random randomGenerator;
+
+    /**
+     * Constructs a language model with the given window length and a given
+     * seed value. Generating texts from this model multiple times with the
+     * same seed value will produce the same random texts.
+     */
+    public ByteLanguageModel(int windowLength, int seed) {
+        this(windowLength, new Random(seed));
+    }
+
+    /**
+     * Constructs a language model with the given window length.
+     * Generating texts from this model multiple times will produce
+     * different random texts.
+     */
+    public ByteLanguageModel(int windowLength) {
+        this(windowLength, new Random());
+    }
+
+    private ByteLanguageModel(int windowLength, Random randomGenerator) {
+        this.windowLength = windowLength;
+        this.randomGenerator = randomGenerator;
+        index = new WindowIndex<int[]>(windowLength);
+        codes = new int[BYTES];
+        symbols = new char[BYTES];
+    }
+
+    /**
+     * Reads the text in the given file as one byte per character, without
+     * carriage returns. Returns the raw bytes if they are pure ASCII. Otherwise,
+     * if they are valid UTF-8, decodes them (like In) and returns their Latin-1
+     * bytes, or null if the text has a character above U+00FF. Bytes that are
+     * not valid UTF-8 are ISO-8859-1 text, and are returned as they are.
+     */
+    public static byte[] readLatin1(String fileName) {
+        byte[] bytes;
+        try {
+            bytes = Files.readAllBytes(Paths.get(fileName));
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + fileName, e);
+        }
+        if (!isAscii(bytes)) {
+            CharBuffer text = null;
+            try {
+                // Malformed input is reported instead of replaced by U+FFFD
+                text = StandardCharsets.UTF_8.newDecoder().decode(ByteBuffer.wrap(bytes));
+            } catch (CharacterCodingException e) {
+                // Not UTF-8: each byte is an ISO-8859-1 character
+            }
+            if (text != null) {
+                for (int i = 0; i < text.length(); i++) {
+                    if (text.charAt(i) >= BYTES) {
+                        return null;
+                    }
+                }
+                bytes = text.toString().getBytes(StandardCharsets.ISO_8859_1);
+            }
+        }
+        // Removes the carriage returns in place
+        int length = 0;
+        for (byte b : bytes) {
+            if (b != '\r') {
+                bytes[length++] = b;
+            }
+        }
+        return length == bytes.length ? bytes : Arrays.copyOf(bytes, length);
+    }
+
+    // Checks if all the given bytes are ASCII characters.
+    private static boolean isAscii(byte[] bytes) {
+        for (byte b : bytes) {
+            if (b < 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /** Returns the number of windows in this model. */
+    public int getWindowCount() {
+        return index.size();
+    }
+
+    /**
+     * Returns the number of times that the given character followed the given
+     * window in training (0 if it never did, or if the window was never seen).
+     */
+    public int getCount(String window, char chr) {
+        int[] followers = index.get(window);
+        if (followers == null || chr >= BYTES || codes[chr] == 0) {
+            return 0;
+        }
+        int code = codes[chr] - 1;
+        if (followers[SIZE] == DENSE) {
+            return FIRST + code < followers.length ? followers[FIRST + code] : 0;
+        }
+        int i = search(followers, code);
+        return i < 0 ? 0 : followers[FIRST + 2 * i + 1];
+    }
+
+    /** Returns the number of characters in the alphabet of this model. */
+    public int getAlphabetSize() {
+        return alphabetSize;
+    }
+
+    /** Returns the number of windows of this model whose followers are dense. */
+    public int getDenseWindowCount() {
+        int dense = 0;
+        for (int entry = 0; entry < index.size(); entry++) {
+            if (index.valueAt(entry)[SIZE] == DENSE) {
+                dense++;
+            }
+        }
+        return dense;
+    }
+
+    /**
+     * Builds a language model from the text in the given file (the corpus),
+     * read by readLatin1. Throws an IllegalArgumentException if the text has
+     * a character above U+00FF.
+     */
+    public void train(String fileName) {
+        byte[] text = readLatin1(fileName);
+        if (text == null) {
+            throw new IllegalArgumentException(fileName
+                    + " has characters above U+00FF: train it with a LanguageModel");
+        }
+        trainBytes(text);
+    }
+
+    /**
+     * Adds the given text, given by its Latin-1 bytes, to this model. The text
+     * is treated as a separate document: its first window does not continue
+     * the previous text.
+     */
+    public void trainBytes(byte[] text) {
+        if (text.length <= windowLength) {
+            return;
+        }
+        extendAlphabet(text);
+        Latin1Text chars = new Latin1Text(text);
+        long hash = index.hash(chars, 0);
+        for (int i = 0; i < text.length - windowLength; i++) {
+            int b = text[i + windowLength] & 0xFF;
+            int entry = index.entryOf(hash, chars, i);
+            if (entry < 0) {
+                // A new window starts sparse, with room for one follower
+                entry = index.put(hash, chars.subSequence(i, i + windowLength).toString(), new int[FIRST + 2]);
+            }
+            int[] followers = index.valueAt(entry);
+            int[] updated = update(followers, codes[b] - 1);
+            if (updated != followers) {
+                index.setValueAt(entry, updated);
+            }
+            hash = index.roll(hash, chars.charAt(i), (char) b);
+        }
+    }
+
+    // Adds the bytes of the given text that are not in the alphabet yet.
+    private void extendAlphabet(byte[] text) {
+        for (byte b : text) {
+            int i = b & 0xFF;
+            if (codes[i] == 0) {
+                symbols[alphabetSize] = (char) i;
+                codes[i] = ++alphabetSize;
+            }
+        }
+    }
+
+    // Counts the follower with the given code in the given followers.
+    // Returns the followers, or a new array that replaces them if they had to
+    // grow, or to become dense.
+    private int[] update(int[] followers, int code) {
+        followers[TOTAL]++;
+        if (followers[SIZE] == DENSE) {
+            // The alphabet grew since the array was made
+            if (FIRST + code >= followers.length) {
+                followers = Arrays.copyOf(followers, FIRST + alphabetSize);
+            }
+            followers[FIRST + code]++;
+            return followers;
+        }
+        int i = search(followers, code);
+        int size = followers[SIZE];
+        if (i >= 0 && followers[TOTAL] < HOT_TOTAL) {
+            followers[FIRST + 2 * i + 1]++;
+            return followers;
+        }
+        if ((size + 1) * DENSE_OCCUPANCY > alphabetSize || followers[TOTAL] >= HOT_TOTAL) {
+            int[] dense = new int[FIRST + alphabetSize];
+            dense[TOTAL] = followers[TOTAL];
+            dense[SIZE] = DENSE;
+            for (int j = 0; j < size; j++) {
+                dense[FIRST + followers[FIRST + 2 * j]] = followers[FIRST + 2 * j + 1];
+            }
+            dense[FIRST + code]++;
+            return dense;
+        }
+        if (FIRST + 2 * (size + 1) > followers.length) {
+            followers = Arrays.copyOf(followers, FIRST + 4 * size);
+        }
+        // Inserts the new follower at its place in the order of the codes
+        int at = -(i + 1);
+        System.arraycopy(followers, FIRST + 2 * at, followers, FIRST + 2 * at + 2, 2 * (size - at));
+        followers[FIRST + 2 * at] = code;
+        followers[FIRST + 2 * at + 1] = 1;
+        followers[SIZE] = size + 1;
+        return followers;
+    }
+
+    // Returns the index of the follower with the given code in the given
+    // sparse followers, or -(insertion point) - 1 if it is not there.
+    private static int search(int[] followers, int code) {
+        int low = 0;
+        int high = followers[SIZE] - 1;
+        while (low <= high) {
+            int mid = (low + high) >>> 1;
+            int midCode = followers[FIRST + 2 * mid];
+            if (midCode < code) {
+                low = mid + 1;
+            } else if (midCode > code) {
+                high = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -(low + 1);
+    }
+
+    /**
+     * Generates a random text, based on the counts that were learned during
+     * training.
+     */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /**
+     * Generates a random text, drawing its characters from the given random
+     * number generator instead of the generator of this model.
+     */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        // Nothing was trained, or the initial text is too short
+        if (index.size() == 0 || initialText.length() < windowLength) {
+            return initialText;
+        }
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+        int windowStart = generatedText.length() - windowLength;
+        long hash = index.hash(generatedText, windowStart);
+        while (generatedText.length() < textLength) {
+            int[] followers = index.get(hash, generatedText, windowStart);
+            // Dead end: resets to the initial seed, or to the first window of the model
+            if (followers == null) {
+                followers = index.get(initialText.substring(0, windowLength));
+            }
+            if (followers == null) {
+                followers = index.valueAt(0);
+            }
+            char c = charAtCount(followers, random.nextInt(followers[TOTAL]));
+            generatedText.append(c);
+            hash = index.roll(hash, generatedText.charAt(windowStart), c);
+            windowStart++;
+        }
+        return generatedText.toString();
+    }
+
+    // Returns the follower at the given count of the given followers: the
+    // follower for which the counts of the followers before it (in the order
+    // of their codes) are at most count, and the counts up to it are greater
+    // than count.
+    private char charAtCount(int[] followers, int count) {
+        if (followers[SIZE] == DENSE) {
+            int code = 0;
+            while (count >= followers[FIRST + code]) {
+                count -= followers[FIRST + code];
+                code++;
+            }
+            return symbols[code];
+        }
+        int i = FIRST;
+        while (count >= followers[i + 1]) {
+            count -= followers[i + 1];
+            i += 2;
+        }
+        return symbols[followers[i]];
+    }
+
+    /**
+     * Returns an estimate of the number of bytes that this model takes on the
+     * heap: the index, and an array of followers per window.
+     */
+    public long estimateHeapSize() {
+        long bytes = index.heapSize();
+        for (int entry = 0; entry < index.size(); entry++) {
+            bytes += LanguageModel.align(16 + 4L * index.valueAt(entry).length);
+        }
+        return bytes;
+    }
+
+    // A view of Latin-1 bytes as characters, so they can be indexed by a
+    // WindowIndex without being copied into a String.
+    private static class Latin1Text implements CharSequence {
+
+        private final byte[] bytes;
+        private final int start;
+        private final int length;
+
+        Latin1Text(byte[] bytes) {
+            this(bytes, 0, bytes.length);
+        }
+
+        Latin1Text(byte[] bytes, int start, int length) {
+            this.bytes = bytes;
+            this.start = start;
+            this.length = length;
+        }
+
+        public int length() {
+            return length;
+        }
+
+        public char charAt(int i) {
+            return (char) (bytes[start + i] & 0xFF);
+        }
+
+        public CharSequence subSequence(int from, int to) {
+            return new Latin1Text(bytes, start + from, to - from);
+        }
+
+        public String toString() {
+            return new String(bytes, start, length, StandardCharsets.ISO_8859_1);
+        }
+    }
+
+    /**
+     * Trains a model on the given corpus and generates a text, like
+     * LanguageModel.main. Falls back to a LanguageModel if the corpus has
+     * characters above U+00FF.
+     */
+    public static void main(String[] args) {
+        int windowLength = Integer.parseInt(args[0]);
+        String initialText = args[1];
+        int generatedTextLength = Integer.parseInt(args[2]);
+        Boolean randomGeneration = args[3].equals("random");
+        String fileName = args[4];
+
+        byte[] text = readLatin1(fileName);
+        if (text == null) {
+            LanguageModel.main(args);
+            return;
+        }
+        ByteLanguageModel lm;
+        if (randomGeneration)
+            lm = new ByteLanguageModel(windowLength);
+        else
+            lm = new ByteLanguageModel(windowLength, 20);
+
+        lm.trainBytes(text);
+        System.out.println(lm.generate(initialText, generatedTextLength));
+    }
+}
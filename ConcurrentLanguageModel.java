@@ -0,0 +1,224 @@
+import java.util.HashSet;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.random.RandomGenerator;
+
+/**
+ * A language model that can be trained and used for generation at the same
+ * time, by many threads.
+ * Writer threads add text to the model with trainText, while reader threads
+ * generate texts from it. Each window counts its followers under its own lock,
+ * so writers that update different windows do not block each other.
+ * Readers never see counts in the middle of an update: at the end of each
+ * trainText call, every window that it touched publishes a new snapshot of its
+ * followers, with freshly computed probabilities, and readers only sample from
+ * published snapshots.
+ * The windows are keyed by their rolling hash (see WindowIndex), so training
+ * and generation move from one window to the next in constant time. Training
+ * creates a String only for a window that is not in the model yet, and
+ * generation creates none.
+ */
+public class ConcurrentLanguageModel {
+
+    // The followers of a single window.
+    private static class Window {
+
+        // The counts of the followers (guarded by the lock of this window)
+        private final FollowerTable counts = new FollowerTable();
+
+        // The last published snapshot of the followers, with probabilities
+        // (null until the window is published for the first time)
+        private volatile FollowerTable snapshot;
+
+        // Counts the given follower.
+        synchronized void update(char chr) {
+            counts.update(chr);
+        }
+
+        // Publishes a snapshot of the current counts.
+        synchronized void publish() {
+            FollowerTable table = counts.copy();
+            table.calculateProbabilities();
+            snapshot = table;
+        }
+    }
+
+    // A window of a text, with its rolling hash. The keys of the map own
+    // their window as a String; a key used only to look up a window (a probe)
+    // is moved along a text, and is never put in the map.
+    private static final class Key {
+
+        // The window: length characters of the text, from start
+        private final CharSequence text;
+        private int start;
+        private final int length;
+
+        // The rolling hash of the window (see WindowIndex.hash)
+        private long hash;
+
+        Key(CharSequence text, int start, int length, long hash) {
+            this.text = text;
+            this.start = start;
+            this.length = length;
+            this.hash = hash;
+        }
+
+        // Returns a key that owns a copy of the window of this key.
+        Key copy() {
+            return new Key(text.subSequence(start, start + length).toString(), 0, length, hash);
+        }
+
+        public int hashCode() {
+            return (int) (WindowIndex.mix(hash) >>> 32);
+        }
+
+        public boolean equals(Object o) {
+            if (!(o instanceof Key)) {
+                return false;
+            }
+            Key other = (Key) o;
+            if (other.hash != hash || other.length != length) {
+                return false;
+            }
+            for (int i = 0; i < length; i++) {
+                if (text.charAt(start + i) != other.text.charAt(other.start + i)) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        // Returns the window of a key in the map.
+        public String toString() {
+            return (String) text;
+        }
+    }
+
+    // The map of this model.
+    // Maps windows to their followers.
+    private final ConcurrentHashMap<Key, Window> windows;
+
+    // The window length used in this model.
+    private final int windowLength;
+
+    // The weight of the oldest character of a window (see WindowIndex.oldestWeight)
+    private final long oldestWeight;
+
+    /** Constructs an empty concurrent language model with the given window length. */
+    public ConcurrentLanguageModel(int windowLength) {
+        this.windowLength = windowLength;
+        oldestWeight = WindowIndex.oldestWeight(windowLength);
+        windows = new ConcurrentHashMap<Key, Window>();
+    }
+
+    /** Adds the text in the given file to this model. */
+    public void train(String fileName) {
+        In in = new In(fileName);
+        trainText(in.readAll().replace("\r", ""));
+    }
+
+    /**
+     * Adds the given text to this model. May be called by many threads at the
+     * same time, and while other threads generate texts. The new counts become
+     * visible to generating threads when this call returns.
+     */
+    public void trainText(CharSequence text) {
+        if (text.length() <= windowLength) {
+            return;
+        }
+        HashSet<Window> touched = new HashSet<Window>();
+        Key probe = new Key(text, 0, windowLength, WindowIndex.hash(text, 0, windowLength));
+        for (int i = 0; i < text.length() - windowLength; i++) {
+            char c = text.charAt(i + windowLength);
+            probe.start = i;
+            Window window = windows.get(probe);
+            if (window == null) {
+                window = windows.computeIfAbsent(probe.copy(), k -> new Window());
+            }
+            window.update(c);
+            touched.add(window);
+            probe.hash = WindowIndex.roll(probe.hash, text.charAt(i), c, windowLength, oldestWeight);
+        }
+        for (Window window : touched) {
+            window.publish();
+        }
+    }
+
+    /**
+     * Returns the published followers of the given window, or null if the
+     * window has no published followers. The returned table must not be changed.
+     */
+    public FollowerTable getFollowers(String window) {
+        if (window.length() != windowLength) {
+            return null;
+        }
+        return snapshotOf(new Key(window, 0, windowLength, WindowIndex.hash(window, 0, windowLength)));
+    }
+
+    // Returns the published followers of the window of the given key, or null
+    // if the window has no published followers.
+    private FollowerTable snapshotOf(Key key) {
+        Window w = windows.get(key);
+        return w == null ? null : w.snapshot;
+    }
+
+    /**
+     * Generates a random text, based on the probabilities that were published
+     * so far, using the given random number generator. May be called by many
+     * threads at the same time, each with its own generator.
+     */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        if (initialText.length() < windowLength) {
+            return initialText;
+        }
+
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+        // The current window is always the tail of the generated text. Its hash
+        // is rolled on every character, so no String or key is created for it.
+        int start = generatedText.length() - windowLength;
+        Key probe = new Key(generatedText, start, windowLength,
+                WindowIndex.hash(generatedText, start, windowLength));
+        Key seed = null;
+        while (generatedText.length() < textLength) {
+            FollowerTable table = snapshotOf(probe);
+            // Dead end: resets to the initial seed, or to any published window
+            if (table == null) {
+                if (seed == null) {
+                    seed = new Key(initialText, 0, windowLength,
+                            WindowIndex.hash(initialText, 0, windowLength));
+                }
+                table = snapshotOf(seed);
+            }
+            if (table == null) {
+                for (Window w : windows.values()) {
+                    table = w.snapshot;
+                    if (table != null) {
+                        break;
+                    }
+                }
+            }
+            // Nothing was published yet
+            if (table == null) {
+                break;
+            }
+            char c = table.charAtProbability(random.nextDouble());
+            generatedText.append(c);
+            probe.hash = WindowIndex.roll(probe.hash, generatedText.charAt(probe.start), c,
+                    windowLength, oldestWeight);
+            probe.start++;
+        }
+        return generatedText.toString();
+    }
+
+    /** Returns a string representing the published followers of this model. */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        for (Key key : windows.keySet()) {
+            FollowerTable table = windows.get(key).snapshot;
+            if (table != null) {
+                str.append(key + " : " + table + "\n");
+            }
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,510 @@
+/**
+ * A compact table of the characters that follow a given window.
+ * Holds the same information as a List of CharData objects, but stores it in
+ * a single packed long array instead of a chain of Node and CharData objects.
+ * Each follower takes two longs: the first holds its character (upper 32 bits)
+ * and its counter (lower 32 bits), and the second holds the raw bits of its
+ * cumulative probability. The probability of a follower is not stored, since
+ * it is derived from its count and the total count of the table.
+ * A table can also be constructed without stored probabilities. Then, each
+ * follower takes a single long, the cumulative probabilities are computed only
+ * when they are asked for, and followers are drawn by their counts (see
+ * charAtCount), without ever computing probabilities.
+ * The followers are kept in the same order as in a List that was built with
+ * the same sequence of update calls (most recently added character first), so
+ * both classes produce the same toString() and the same random choices.
+ * A follower is found by a linear scan while the table is small. Once it has
+ * more than INDEX_THRESHOLD followers, the table also keeps an index from each
+ * character to the order in which it was added, which stays valid as new
+ * followers are put in front of the others. The index is chosen per table, by
+ * its occupancy: a table with DENSE_THRESHOLD or more followers, all of them
+ * Latin-1 (the alphabet of the bundled corpora), keeps a dense array with a
+ * slot per Latin-1 character, so a follower is found by a single array read.
+ * Other tables keep a small open-addressing hash table, which takes less
+ * memory while the table is sparse, and also holds characters above Latin-1.
+ */
+public class FollowerTable {
+
+    // Mask of the counter bits in a packed follower
+    private static final long COUNT_MASK = 0xFFFFFFFFL;
+
+    // The number of followers above which a table keeps an index
+    private static final int INDEX_THRESHOLD = 8;
+
+    // The number of followers from which a table of Latin-1 followers keeps a
+    // dense index. Its hashed index would then take at least 64 slots, a
+    // quarter of the dense one.
+    private static final int DENSE_THRESHOLD = 16;
+
+    // The number of slots of a dense index: one per Latin-1 character
+    private static final int DENSE_SIZE = 256;
+
+    // The multiplier that spreads the bits of a character in the index
+    private static final int INDEX_MULTIPLIER = 0x9E3779B9;
+
+    // The packed followers: data[stride * i] is the character and counter of
+    // the i'th follower, and data[stride * i + 1] is its cumulative probability
+    // (if the probabilities are stored).
+    private long[] data;
+
+    // The number of longs per follower: 2 if the probabilities are stored, 1
+    // otherwise (a byte, so a table object still takes 40 bytes with its
+    // index and its dense flag)
+    private final byte stride;
+
+    // The number of followers in this table
+    private int size;
+
+    // The sum of all the counters in this table
+    private int total;
+
+    // The index of the followers (null while the table is small): each slot
+    // is 0 if it is free, and otherwise k + 1, where the follower is the k'th
+    // one added (and is at index size - 1 - k). A dense index has a slot per
+    // Latin-1 character. A hashed index has a power of two capacity, at least
+    // twice the number of followers.
+    private int[] index;
+
+    // True if the index is dense
+    private boolean dense;
+
+    // True if the counters of this table changed since its cumulative
+    // probabilities were last computed
+    private boolean dirty;
+
+    // The alias table of this table (built only for alias sampling):
+    // column i returns follower i with probability aliasProbs[i], and
+    // follower aliases[i] otherwise.
+    private double[] aliasProbs;
+    private int[] aliases;
+
+    /** Constructs an empty table. */
+    public FollowerTable() {
+        this(true);
+    }
+
+    /**
+     * Constructs an empty table. If storeProbabilities is false, the table
+     * stores only the counters, and computes cumulative probabilities when
+     * they are asked for.
+     */
+    public FollowerTable(boolean storeProbabilities) {
+        stride = (byte) (storeProbabilities ? 2 : 1);
+        data = new long[0];
+        size = 0;
+        total = 0;
+    }
+
+    /** Returns the number of followers in this table. */
+    public int getSize() {
+        return size;
+    }
+
+    /** Returns the sum of all the counters in this table. */
+    public int getTotal() {
+        return total;
+    }
+
+    /**
+     * Checks if the counters of this table changed since its cumulative
+     * probabilities were last computed.
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** Returns the character of the follower at the given index. */
+    public char chrAt(int index) {
+        return (char) (data[stride * index] >>> 32);
+    }
+
+    /** Returns the counter of the follower at the given index. */
+    public int countAt(int index) {
+        return (int) (data[stride * index] & COUNT_MASK);
+    }
+
+    /** Returns the probability of the follower at the given index. */
+    public double pAt(int index) {
+        return (double) countAt(index) / total;
+    }
+
+    /** Returns the cumulative probability of the follower at the given index. */
+    public double cpAt(int index) {
+        if (stride == 2) {
+            return Double.longBitsToDouble(data[2 * index + 1]);
+        }
+        // Not stored: sums the probabilities, as calculateProbabilities does
+        double cumulativeProb = 0.0;
+        for (int i = 0; i <= index; i++) {
+            cumulativeProb += (double) countAt(i) / total;
+        }
+        return cumulativeProb;
+    }
+
+    /**
+     * Returns the index of the follower that has the given character,
+     * or -1 if there is no such follower in this table.
+     */
+    public int indexOf(char chr) {
+        if (dense) {
+            int k = chr < DENSE_SIZE ? index[chr] : 0;
+            return k == 0 ? -1 : size - k;
+        }
+        if (index != null) {
+            int mask = index.length - 1;
+            for (int slot = indexSlot(chr); index[slot] != 0; slot = (slot + 1) & mask) {
+                int i = size - index[slot];
+                if (chrAt(i) == chr) {
+                    return i;
+                }
+            }
+            return -1;
+        }
+        return scan(chr);
+    }
+
+    // Returns the index of the follower that has the given character, by a
+    // linear scan over the followers, or -1 if there is no such follower.
+    private int scan(char chr) {
+        for (int i = 0; i < size; i++) {
+            if (chrAt(i) == chr) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /** Returns a copy of this table. Changing the copy does not change this table. */
+    public FollowerTable copy() {
+        FollowerTable table = new FollowerTable(stride == 2);
+        table.data = data.clone();
+        table.size = size;
+        table.total = total;
+        table.dirty = dirty;
+        if (index != null) {
+            table.index = index.clone();
+            table.dense = dense;
+        }
+        if (aliasProbs != null) {
+            table.aliasProbs = aliasProbs.clone();
+            table.aliases = aliases.clone();
+        }
+        return table;
+    }
+
+    /**
+     * If the given character is already a follower, increments its counter.
+     * Otherwise, adds it as the first follower of this table, with a counter of 1.
+     * Returns the scan depth of the follower (see add).
+     */
+    public int update(char chr) {
+        return add(chr, 1);
+    }
+
+    /**
+     * Adds the given count to the follower that has the given character.
+     * If there is no such follower, adds it as the first follower of this table.
+     * Returns the number of followers that a linear scan compared to the
+     * character: its index plus 1 if it was found, or the previous size of
+     * this table if it was added. Returns -1 if the follower was looked up in
+     * the index of a large table instead.
+     * In a table with a dense index, a follower that is already in the table
+     * is found and counted by a single array read and increment.
+     */
+    public int add(char chr, int count) {
+        total += count;
+        // A table that does not store probabilities is never out of date
+        dirty = stride == 2;
+        int i;
+        int depth;
+        if (index != null) {
+            i = indexOf(chr);
+            depth = -1;
+        } else {
+            i = scan(chr);
+            depth = i < 0 ? size : i + 1;
+        }
+        if (i >= 0) {
+            data[stride * i] += count;
+            return depth;
+        }
+        // Most windows have very few followers, so the array grows by exactly
+        // one follower. Inserting at the front copies the array anyway.
+        long[] newData = new long[stride * (size + 1)];
+        System.arraycopy(data, 0, newData, stride, stride * size);
+        newData[0] = ((long) chr << 32) | count;
+        data = newData;
+        size++;
+        if (dense && chr < DENSE_SIZE) {
+            index[chr] = size;
+        } else if (index != null && !dense && 2 * size <= index.length && size != DENSE_THRESHOLD) {
+            indexInsert(chr, size - 1);
+        } else if (size > INDEX_THRESHOLD) {
+            buildIndex();
+        }
+        return depth;
+    }
+
+    // Builds the index of this table: a dense index if the table has enough
+    // followers and all of them are Latin-1, and otherwise a hashed index,
+    // with room for twice its followers.
+    private void buildIndex() {
+        dense = size >= DENSE_THRESHOLD;
+        for (int i = 0; i < size && dense; i++) {
+            dense = chrAt(i) < DENSE_SIZE;
+        }
+        if (dense) {
+            index = new int[DENSE_SIZE];
+            for (int i = 0; i < size; i++) {
+                index[chrAt(i)] = size - i;
+            }
+            return;
+        }
+        int capacity = Integer.highestOneBit(size) * 4;
+        index = new int[capacity];
+        for (int i = 0; i < size; i++) {
+            indexInsert(chrAt(i), size - 1 - i);
+        }
+    }
+
+    // Puts the k'th added follower, which has the given character, in the
+    // first free slot of the index, starting at the home slot of the character.
+    private void indexInsert(char chr, int k) {
+        int mask = index.length - 1;
+        int slot = indexSlot(chr);
+        while (index[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        index[slot] = k + 1;
+    }
+
+    // Returns the home slot of the given character in the index.
+    private int indexSlot(char chr) {
+        return (chr * INDEX_MULTIPLIER) >>> (32 - Integer.numberOfTrailingZeros(index.length));
+    }
+
+    /**
+     * Computes and sets the cumulative probabilities of all the followers.
+     * Uses exactly the same arithmetic as LanguageModel.calculateProbabilities,
+     * so the results are identical to those of the List-based model.
+     * Does nothing if this table does not store probabilities.
+     */
+    public void calculateProbabilities() {
+        dirty = false;
+        if (stride == 1) {
+            return;
+        }
+        double cumulativeProb = 0.0;
+        for (int i = 0; i < size; i++) {
+            cumulativeProb += (double) countAt(i) / total;
+            data[2 * i + 1] = Double.doubleToRawLongBits(cumulativeProb);
+        }
+    }
+
+    /**
+     * Returns the character of the follower that the given k, a number in
+     * [0, total), falls into, when the followers are laid out one after the
+     * other, each taking as many numbers as its counter. If k is uniformly
+     * distributed, each follower is returned with its probability.
+     * Uses only the counters, so it works without computed probabilities.
+     */
+    public char charAtCount(int k) {
+        int runningCount = 0;
+        for (int i = 0; i < size - 1; i++) {
+            runningCount += countAt(i);
+            if (runningCount > k) {
+                return chrAt(i);
+            }
+        }
+        return chrAt(size - 1);
+    }
+
+    /**
+     * Returns the character of the first follower whose cumulative probability
+     * is greater than r, or the last follower if there is no such follower
+     * (this may happen due to rounding errors).
+     * Since the cumulative probabilities are sorted, uses binary search.
+     * Returns the same character as a linear scan over the followers.
+     */
+    public char charAtProbability(double r) {
+        int lo = 0;
+        int hi = size - 1;
+        while (lo < hi) {
+            int mid = (lo + hi) >>> 1;
+            if (cpAt(mid) > r) {
+                hi = mid;
+            } else {
+                lo = mid + 1;
+            }
+        }
+        return chrAt(lo);
+    }
+
+    /**
+     * Builds the alias table of this table (Walker's alias method, using
+     * Vose's construction). Once built, charAtAlias draws a follower in
+     * constant time, regardless of the number of followers.
+     * The scaled probabilities are computed with integer arithmetic, so the
+     * table is exact up to the final division.
+     */
+    public void buildAliasTable() {
+        aliasProbs = new double[size];
+        aliases = new int[size];
+        // Each column holds a probability mass of total, out of size * total
+        long[] scaled = new long[size];
+        int[] small = new int[size];
+        int[] large = new int[size];
+        int smallCount = 0;
+        int largeCount = 0;
+        for (int i = 0; i < size; i++) {
+            scaled[i] = (long) countAt(i) * size;
+            if (scaled[i] < total) {
+                small[smallCount++] = i;
+            } else {
+                large[largeCount++] = i;
+            }
+        }
+        while (smallCount > 0 && largeCount > 0) {
+            int s = small[--smallCount];
+            int l = large[--largeCount];
+            aliasProbs[s] = (double) scaled[s] / total;
+            aliases[s] = l;
+            // The large follower fills the rest of the small follower's column
+            scaled[l] -= total - scaled[s];
+            if (scaled[l] < total) {
+                small[smallCount++] = l;
+            } else {
+                large[largeCount++] = l;
+            }
+        }
+        while (largeCount > 0) {
+            int l = large[--largeCount];
+            aliasProbs[l] = 1.0;
+            aliases[l] = l;
+        }
+        while (smallCount > 0) {
+            int s = small[--smallCount];
+            aliasProbs[s] = 1.0;
+            aliases[s] = s;
+        }
+    }
+
+    /**
+     * Returns a random follower using the alias table, given a uniformly
+     * distributed r in [0,1). The integer part of r * size selects a column,
+     * and the fractional part decides between the column and its alias.
+     * Should be called only after buildAliasTable().
+     */
+    public char charAtAlias(double r) {
+        double x = r * size;
+        // Guards against r * size rounding up to size
+        int column = Math.min((int) x, size - 1);
+        if (x - column < aliasProbs[column]) {
+            return chrAt(column);
+        }
+        return chrAt(aliases[column]);
+    }
+
+    /**
+     * Returns a CharData object describing the follower at the given index.
+     * The returned object is a copy: changing it does not change this table.
+     * If the index is negative or is greater than the size of this table,
+     * throws an IndexOutOfBoundsException.
+     */
+    public CharData get(int index) {
+        if (index < 0 || index >= size) {
+            throw new IndexOutOfBoundsException();
+        }
+        CharData cd = new CharData(chrAt(index));
+        cd.count = countAt(index);
+        cd.p = pAt(index);
+        cd.cp = cpAt(index);
+        return cd;
+    }
+
+    /** Returns an array of CharData objects describing all the followers. */
+    public CharData[] toArray() {
+        CharData[] arr = new CharData[size];
+        for (int i = 0; i < size; i++) {
+            arr[i] = get(i);
+        }
+        return arr;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes that this table takes on the
+     * heap: the table object, its packed array, its index, and its alias
+     * table (if built).
+     */
+    public long heapSize() {
+        long bytes = 40 + LanguageModel.align(16 + 8L * data.length);
+        if (index != null) {
+            bytes += LanguageModel.align(16 + 4L * index.length);
+        }
+        if (aliasProbs != null) {
+            bytes += LanguageModel.align(16 + 8L * aliasProbs.length)
+                    + LanguageModel.align(16 + 4L * aliases.length);
+        }
+        return bytes;
+    }
+
+    /** Textual representation of this table, in the same format as List. */
+    public String toString() {
+        if (size == 0)
+            return "()";
+
+        StringBuilder str = new StringBuilder("(");
+        for (int i = 0; i < size; i++) {
+            str.append(get(i).toString());
+            if (i < size - 1) {
+                str.append(" ");
+            }
+        }
+        str.append(")");
+        return str.toString();
+    }
+
+    /**
+     * Compares the heap footprint of the List-based and the table-based
+     * models (with and without stored probabilities), trained on the given
+     * file with the given window length.
+     * Usage: java FollowerTable originofspecies.txt 7
+     */
+    public static void main(String[] args) {
+        String fileName = args[0];
+        int windowLength = Integer.parseInt(args[1]);
+
+        long before = usedMemory();
+        LanguageModel listModel = new LanguageModel(windowLength, 20);
+        listModel.train(fileName);
+        long listBytes = usedMemory() - before;
+
+        before = usedMemory();
+        LanguageModel tableModel = new LanguageModel(windowLength, 20, true);
+        tableModel.train(fileName);
+        long tableBytes = usedMemory() - before;
+
+        before = usedMemory();
+        LanguageModel lazyModel = new LanguageModel(windowLength, 20, true);
+        lazyModel.setLazyProbabilities(true);
+        lazyModel.train(fileName);
+        long lazyBytes = usedMemory() - before;
+
+        System.out.println("Windows:           " + listModel.getWindowCount());
+        System.out.println("List model:        " + listBytes / 1024 + " KB");
+        System.out.println("Table model:       " + tableBytes / 1024 + " KB");
+        System.out.println("Lazy table model:  " + lazyBytes / 1024 + " KB");
+        // Keeps all the models reachable until all were measured
+        System.out.println("Same model:        " + (listModel.toString().equals(tableModel.toString())
+                && listModel.toString().equals(lazyModel.toString())));
+    }
+
+    // Returns the number of bytes currently used on the heap, after garbage collection.
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
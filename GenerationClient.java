@@ -0,0 +1,120 @@
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+
+/**
+ * A client of GenerationServer, over a local socket.
+ * Its main method measures the server under concurrent load: it opens the
+ * given number of connections, and each of them sends requests one after the
+ * other, waiting for each response before sending the next request. Prints
+ * the throughput, and the percentiles of the latencies of the requests.
+ * Usage: java GenerationClient port connections requestsPerConnection textLength initialText
+ */
+public class GenerationClient implements AutoCloseable {
+
+    // The connection to the server
+    private final Socket socket;
+    private final BufferedReader in;
+    private final Writer out;
+
+    /** Connects to the server that listens on the given local port. */
+    public GenerationClient(int port) throws IOException {
+        socket = new Socket(InetAddress.getLoopbackAddress(), port);
+        socket.setTcpNoDelay(true);
+        in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+        out = new BufferedWriter(new OutputStreamWriter(socket.getOutputStream(), StandardCharsets.UTF_8));
+    }
+
+    /** Sends the given request to the server, and returns the generated text. */
+    public String generate(String initialText, int textLength, long seed) throws IOException {
+        out.write(textLength + " " + seed + " " + initialText + "\n");
+        out.flush();
+        return readResponse(in);
+    }
+
+    /**
+     * Reads a single response of the server from the given reader, and
+     * returns its text. Throws an IOException if the response is an error.
+     */
+    public static String readResponse(BufferedReader in) throws IOException {
+        String header = in.readLine();
+        if (header == null) {
+            throw new IOException("The server closed the connection");
+        }
+        if (header.startsWith("ERR")) {
+            throw new IOException(header);
+        }
+        char[] text = new char[Integer.parseInt(header)];
+        int read = 0;
+        while (read < text.length) {
+            int n = in.read(text, read, text.length - read);
+            if (n < 0) {
+                throw new IOException("The server closed the connection");
+            }
+            read += n;
+        }
+        // The newline after the text
+        in.read();
+        return new String(text);
+    }
+
+    /** Closes the connection to the server. */
+    public void close() throws IOException {
+        socket.close();
+    }
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.parseInt(args[0]);
+        int connections = Integer.parseInt(args[1]);
+        int requests = Integer.parseInt(args[2]);
+        int textLength = Integer.parseInt(args[3]);
+        String initialText = args[4];
+
+        long[][] latencies = new long[connections][requests];
+        Thread[] threads = new Thread[connections];
+        long start = System.nanoTime();
+        for (int c = 0; c < connections; c++) {
+            int connection = c;
+            threads[c] = new Thread(() -> {
+                try (GenerationClient client = new GenerationClient(port)) {
+                    for (int r = 0; r < requests; r++) {
+                        long sent = System.nanoTime();
+                        client.generate(initialText, textLength, (long) connection * requests + r);
+                        latencies[connection][r] = System.nanoTime() - sent;
+                    }
+                } catch (IOException e) {
+                    throw new IllegalStateException("Connection " + connection + " failed", e);
+                }
+            });
+            threads[c].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        long elapsed = System.nanoTime() - start;
+
+        long[] all = new long[connections * requests];
+        for (int c = 0; c < connections; c++) {
+            System.arraycopy(latencies[c], 0, all, c * requests, requests);
+        }
+        Arrays.sort(all);
+        System.out.printf("%d connections, %d requests of %d chars: %.0f requests/s%n",
+                connections, all.length, textLength, all.length * 1e9 / elapsed);
+        System.out.printf("latency us: p50 %.0f, p90 %.0f, p99 %.0f, max %.0f%n",
+                percentile(all, 0.5) / 1e3, percentile(all, 0.9) / 1e3,
+                percentile(all, 0.99) / 1e3, all[all.length - 1] / 1e3);
+    }
+
+    // Returns the given percentile of the given sorted values.
+    private static long percentile(long[] sorted, double fraction) {
+        int index = (int) Math.ceil(fraction * sorted.length) - 1;
+        return sorted[Math.max(index, 0)];
+    }
+}
@@ -0,0 +1,28 @@
+/**
+ * A request to generate a random text: the initial text, the length of the
+ * text to generate, and the seed of the random number generator that draws
+ * its characters. Requests are generated together by LanguageModel.generateBatch.
+ */
+public class GenerationRequest {
+
+    // The text that the generated text starts with
+    final String initialText;
+
+    // The length of the generated text
+    final int textLength;
+
+    // The seed of the random number generator of this request
+    final long seed;
+
+    /** Constructs a request to generate a text with the given parameters. */
+    public GenerationRequest(String initialText, int textLength, long seed) {
+        this.initialText = initialText;
+        this.textLength = textLength;
+        this.seed = seed;
+    }
+
+    /** Returns a textual representation of this request. */
+    public String toString() {
+        return "(" + initialText + " " + textLength + " " + seed + ")";
+    }
+}
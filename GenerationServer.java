@@ -0,0 +1,214 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * A long-running server that trains a language model once, and then generates
+ * texts for requests that arrive over local sockets, or over the standard input.
+ * The protocol is line-based. Each request is a single line:
+ *   textLength seed initialText
+ * where the initial text is the rest of the line, after a single space, and
+ * may contain spaces. The response to a request is a line with the length of
+ * the generated text, followed by the text itself and a newline (the text may
+ * contain newlines, so it is read by its length):
+ *   12
+ *   Natural sele
+ * A malformed request gets a single line response that starts with "ERR".
+ * The text of a request depends only on its seed, as in LanguageModel.generateBatch.
+ * Each connection is served by its own thread (a virtual thread on Java 21),
+ * and reads its requests with In, so a client may send many requests on one
+ * connection, without waiting for the responses. The requests of a connection
+ * are served one after the other, in order, by the thread of the connection:
+ * a client that wants requests generated in parallel opens several connections.
+ * Usage: java GenerationServer windowLength fileName port
+ *    or: java GenerationServer windowLength fileName -    (serves standard input)
+ */
+public class GenerationServer {
+
+    // The longest text that a single request may ask for
+    private static final int MAX_TEXT_LENGTH = 1 << 24;
+
+    // The pause before accepting again, after accepting a connection failed
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
+    // The model that generates the texts
+    private final LanguageModel model;
+
+    // Serves the connections, a thread per connection (see newWorkers)
+    private final ExecutorService workers;
+
+    // The socket that accepts the connections (null until serve is called)
+    private volatile ServerSocket serverSocket;
+
+    // The connections that are being served. Interrupting a thread does not
+    // stop it from blocking on a socket read, so close() closes them.
+    private final Set<Socket> connections = ConcurrentHashMap.newKeySet();
+
+    // True after close() was called
+    private volatile boolean closed;
+
+    /** Constructs a server that generates texts from the given trained model. */
+    public GenerationServer(LanguageModel model) {
+        this.model = model;
+        workers = newWorkers();
+    }
+
+    // Returns an executor that runs each connection on a new virtual thread,
+    // if the JVM has them (Java 21, which the autograding workflow uses), or
+    // on a cached pool of daemon threads otherwise. It is looked up by
+    // reflection, since the benchmarks module still compiles for Java 17.
+    private static ExecutorService newWorkers() {
+        try {
+            return (ExecutorService) Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+        } catch (ReflectiveOperationException e) {
+            return Executors.newCachedThreadPool(runnable -> {
+                Thread thread = new Thread(runnable, "generation-worker");
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    /**
+     * Accepts connections on the given socket, and serves each of them on its
+     * own thread, until the server is closed. A connection that could not be
+     * accepted is reported to the standard error, and the server keeps
+     * accepting connections.
+     */
+    public void serve(ServerSocket serverSocket) {
+        this.serverSocket = serverSocket;
+        while (!serverSocket.isClosed()) {
+            Socket socket;
+            try {
+                socket = serverSocket.accept();
+            } catch (IOException e) {
+                // Closing the server socket ends the loop
+                if (closed || serverSocket.isClosed()) {
+                    return;
+                }
+                // Accept fails transiently, for example when the process is out
+                // of file descriptors or a client aborted its connection: the
+                // server keeps accepting, after a pause, so that a failure that
+                // lasts does not turn the loop into a busy one
+                System.err.println("Could not accept a connection: " + e.getMessage());
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+                continue;
+            }
+            connections.add(socket);
+            // A connection accepted while the server was closing is not served
+            if (closed) {
+                closeConnections();
+                return;
+            }
+            workers.execute(() -> serve(socket));
+        }
+    }
+
+    // Serves the requests of a single connection, until the client closes it,
+    // or the server is closed.
+    private void serve(Socket socket) {
+        try (Socket s = socket) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(s.getOutputStream(), StandardCharsets.UTF_8));
+            serve(new In(s), out);
+        } catch (IOException e) {
+            // The client went away: nothing to respond to
+        } finally {
+            connections.remove(socket);
+        }
+    }
+
+    /**
+     * Reads requests from the given input until it ends, and writes the
+     * response to each request to the given output.
+     */
+    public void serve(In in, Writer out) throws IOException {
+        String line;
+        while ((line = in.readLine()) != null) {
+            out.write(respond(line));
+            out.flush();
+        }
+    }
+
+    /** Returns the response to the given request line. */
+    public String respond(String line) {
+        String[] parts = line.split(" ", 3);
+        if (parts.length < 3) {
+            return "ERR expected: textLength seed initialText\n";
+        }
+        GenerationRequest request;
+        try {
+            request = new GenerationRequest(parts[2], Integer.parseInt(parts[0]), Long.parseLong(parts[1]));
+        } catch (NumberFormatException e) {
+            return "ERR " + e.getMessage() + "\n";
+        }
+        if (request.textLength > MAX_TEXT_LENGTH) {
+            return "ERR textLength is larger than " + MAX_TEXT_LENGTH + "\n";
+        }
+        String text = model.generate(request);
+        return text.length() + "\n" + text + "\n";
+    }
+
+    /**
+     * Stops accepting connections, closes the connections that are being
+     * served, and stops the threads that serve them.
+     */
+    public void close() {
+        closed = true;
+        try {
+            if (serverSocket != null) {
+                serverSocket.close();
+            }
+        } catch (IOException e) {
+            throw new IllegalStateException("Could not close the server socket", e);
+        } finally {
+            closeConnections();
+            workers.shutdownNow();
+        }
+    }
+
+    // Closes all the connections that are being served, which ends their
+    // blocked reads.
+    private void closeConnections() {
+        for (Socket socket : connections) {
+            try {
+                socket.close();
+            } catch (IOException e) {
+                // Closing it is all that can be done
+            }
+            connections.remove(socket);
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int windowLength = Integer.parseInt(args[0]);
+        String fileName = args[1];
+
+        LanguageModel lm = new LanguageModel(windowLength, 20);
+        lm.train(fileName);
+        GenerationServer server = new GenerationServer(lm);
+        if (args[2].equals("-")) {
+            Writer out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            server.serve(new In(), out);
+            return;
+        }
+        // Accepts local connections only
+        ServerSocket serverSocket = new ServerSocket(Integer.parseInt(args[2]), 50,
+                InetAddress.getLoopbackAddress());
+        System.err.println("Serving " + fileName + " on port " + serverSocket.getLocalPort());
+        server.serve(serverSocket);
+    }
+}
@@ -1,11 +1,68 @@
+import java.io.BufferedReader;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Random;
+import java.util.SplittableRandom;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.random.RandomGenerator;
 
 public class LanguageModel {
 
-    // The map of this model.
-    // Maps windows to lists of charachter data objects.
-    HashMap<String, List> CharDataMap;
+    // The number of characters read at a time when training from a stream.
+    private static final int CHUNK_SIZE = 1 << 16;
+
+    // The minimal number of windows counted by a single parallel training task.
+    private static final int MIN_SHARD_SIZE = 1 << 16;
+
+    // The maximal number of bytes mapped at a time when training from a mapped file.
+    // A single mapping is limited to 2 GB, so larger files are mapped in segments.
+    private static final long SEGMENT_SIZE = 1L << 30;
+
+    // The windows and lists of charachter data objects of this model, when it
+    // uses lists. Finds the followers of a window, given by its position in a
+    // text, without creating a String for the window. Holds the only copy of
+    // the windows, in the order in which they were added. toString and
+    // fallbackWindow put them into a HashMap in that order, so they iterate
+    // them as the original map did, and charDataMap builds such a map on demand.
+    WindowIndex<List> listIndex;
+
+    // The windows and follower tables of this model when it uses compact
+    // follower tables. Holds the only copy of the windows, in the order in
+    // which they were added, and is ordered like listIndex (see
+    // WindowIndex.hashMapOrder).
+    WindowIndex<FollowerTable> tableIndex;
+
+    // The window that generate falls back to (see fallbackWindow),
+    // or null if it was not found since the last new window
+    private String fallbackWindow;
+
+    // The followers whose counts changed since their probabilities were last
+    // computed. Training recomputes the probabilities of these followers only.
+    private ArrayList<List> dirtyLists;
+    private ArrayList<FollowerTable> dirtyTables;
+
+    // True if this model stores its followers in compact tables instead of lists.
+    private boolean compact;
+
+    // True if this model draws characters from alias tables.
+    private boolean aliasSampling;
+
+    // True if this model stores only counts, and draws characters by them.
+    private boolean lazyProbabilities;
 
     // The window length used in this model.
     int windowLength;
@@ -13,6 +70,16 @@ public class LanguageModel {
     // The random number generator used by this model.
     private Random randomGenerator;
 
+    // The seed from which the random streams of this model are derived
+    // (see randomStream).
+    private long streamSeed;
+
+    // Receives the events of this model (null if they are not monitored)
+    private ModelMetrics metrics;
+
+    // The number of characters (windows with a follower) counted so far
+    private long countedChars;
+
     /**
      * Constructs a language model with the given window length and a given
      * seed value. Generating texts from this model multiple times with the
@@ -21,7 +88,88 @@ public class LanguageModel {
     public LanguageModel(int windowLength, int seed) {
         this.windowLength = windowLength;
         randomGenerator = new Random(seed);
-        CharDataMap = new HashMap<String, List>();
+        streamSeed = seed;
+        listIndex = new WindowIndex<List>(windowLength);
+        tableIndex = new WindowIndex<FollowerTable>(windowLength);
+        dirtyLists = new ArrayList<List>();
+        dirtyTables = new ArrayList<FollowerTable>();
+    }
+
+    /**
+     * Constructs a language model with the given window length and a given
+     * seed value. If compact is true, the followers of each window are stored
+     * in a FollowerTable instead of a List, which takes much less memory.
+     * Both kinds of models generate the same texts.
+     */
+    public LanguageModel(int windowLength, int seed, boolean compact) {
+        this(windowLength, seed);
+        this.compact = compact;
+    }
+
+    // Constructs an empty model that only counts the windows of a shard of a
+    // corpus, during parallel training. Its index keeps the windows in the
+    // order in which they were first seen, so shards can be merged in order.
+    private LanguageModel(LanguageModel model) {
+        this(model.windowLength, 0, model.compact);
+        lazyProbabilities = model.lazyProbabilities;
+    }
+
+    /**
+     * Sets whether this model draws characters using alias tables (Walker's
+     * alias method), which takes constant time per character, regardless of
+     * the number of followers of the window. The generated texts differ from
+     * those of the default cumulative probability sampling.
+     * Should be called only on a compact model. If it is turned on after
+     * training, builds the alias tables of all the trained windows.
+     */
+    public void setAliasSampling(boolean aliasSampling) {
+        if (!compact) {
+            throw new IllegalStateException("alias sampling requires a compact model");
+        }
+        if (lazyProbabilities) {
+            throw new IllegalStateException("alias sampling cannot be used with lazy probabilities");
+        }
+        boolean turnedOn = aliasSampling && !this.aliasSampling;
+        this.aliasSampling = aliasSampling;
+        if (turnedOn) {
+            for (int entry = 0; entry < tableIndex.size(); entry++) {
+                tableIndex.valueAt(entry).buildAliasTable();
+            }
+        }
+    }
+
+    /**
+     * Sets whether this model stores only the counts of the followers, without
+     * their probabilities. Then, training never computes probabilities, and
+     * characters are drawn by comparing a random integer in [0, total) to the
+     * running counts of the followers, so each follower takes less than half
+     * the memory. The probabilities are still computed for toString().
+     * The generated texts differ from those of the default sampling.
+     * Should be called only on a compact model, and before training: the
+     * tables of the trained windows would keep their stored probabilities,
+     * which lazy training never updates, so changing the mode of a trained
+     * model throws an IllegalStateException.
+     */
+    public void setLazyProbabilities(boolean lazyProbabilities) {
+        if (!compact) {
+            throw new IllegalStateException("lazy probabilities require a compact model");
+        }
+        if (aliasSampling) {
+            throw new IllegalStateException("lazy probabilities cannot be used with alias sampling");
+        }
+        if (lazyProbabilities != this.lazyProbabilities && getWindowCount() > 0) {
+            throw new IllegalStateException("lazy probabilities must be set before training");
+        }
+        this.lazyProbabilities = lazyProbabilities;
+    }
+
+    /**
+     * Sets the metrics that receive the events of this model, such as new
+     * windows, training times and generate latencies, or null to stop
+     * reporting them. See ModelStats.
+     */
+    public void setMetrics(ModelMetrics metrics) {
+        this.metrics = metrics;
     }
 
     /**
@@ -32,33 +180,459 @@ public class LanguageModel {
     public LanguageModel(int windowLength) {
         this.windowLength = windowLength;
         randomGenerator = new Random();
-        CharDataMap = new HashMap<String, List>();
+        streamSeed = new SplittableRandom().nextLong();
+        listIndex = new WindowIndex<List>(windowLength);
+        tableIndex = new WindowIndex<FollowerTable>(windowLength);
+        dirtyLists = new ArrayList<List>();
+        dirtyTables = new ArrayList<FollowerTable>();
     }
 
-    /** Builds a language model from the text in the given file (the corpus). */
+    /**
+     * Builds a language model from the text in the given file (the corpus).
+     * May be called several times, to add more text to the model. Each call
+     * computes the probabilities only of the windows that its text changed.
+     */
     public void train(String fileName) {
+        long startTime = System.nanoTime();
+        long startChars = countedChars;
         In in = new In(fileName);
         
         // FIX 1: Sanitize Input
         // Removes invisible Windows carriage returns (\r) which cause off-by-one errors.
         String text = in.readAll().replace("\r", "");
 
-        // Linear training (Standard "sliding window")
-        for (int i = 0; i < text.length() - windowLength; i++) {
-            String window = text.substring(i, i + windowLength);
-            char c = text.charAt(i + windowLength);
+        countWindows(text);
+        calculateDirtyProbabilities();
+        reportTraining(startChars, startTime);
+    }
+
+    /**
+     * Adds the given text to this model. The text is treated as a separate
+     * document: its first window does not continue the previous text.
+     * Computes the probabilities only of the windows that the text changed,
+     * so adding a small text to a large model is cheap.
+     */
+    public void trainText(CharSequence text) {
+        long startTime = System.nanoTime();
+        long startChars = countedChars;
+        countWindows(text);
+        calculateDirtyProbabilities();
+        reportTraining(startChars, startTime);
+    }
+
+    /**
+     * Builds a language model from the text in the given file (the corpus),
+     * without loading the whole file into memory. Reads the file in chunks,
+     * removes carriage returns on the fly, and carries the last window of each
+     * chunk over to the next one. Builds exactly the same model as train.
+     */
+    public void trainStream(String fileName) {
+        long startTime = System.nanoTime();
+        long startChars = countedChars;
+        // Room for a chunk, after the window carried over from the previous chunk
+        char[] buffer = new char[windowLength + CHUNK_SIZE];
+        int carried = 0;
+        try (Reader reader = new BufferedReader(new InputStreamReader(
+                new FileInputStream(fileName), StandardCharsets.UTF_8))) {
+            int read;
+            while ((read = reader.read(buffer, carried, CHUNK_SIZE)) != -1) {
+                carried = countChunk(buffer, carried, read);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + fileName, e);
+        }
+        calculateDirtyProbabilities();
+        reportTraining(startChars, startTime);
+    }
+
+    /**
+     * Builds a language model from the text in the given file (the corpus),
+     * by mapping the file into memory and decoding its UTF-8 bytes directly
+     * from the mapping, in chunks. Files larger than 2 GB are mapped in
+     * segments; a character whose bytes span two segments is decoded from
+     * the start of the next segment. Builds exactly the same model as train.
+     */
+    public void trainMapped(String fileName) {
+        trainMapped(fileName, SEGMENT_SIZE);
+    }
+
+    // Trains from the given file, mapped in segments of at most the given
+    // number of bytes (small segments test the segment boundaries). A segment
+    // must hold the longest UTF-8 character, 4 bytes, or a character that
+    // does not fit would be decoded again and again from the same position.
+    void trainMapped(String fileName, long segmentSize) {
+        if (segmentSize < 4) {
+            throw new IllegalArgumentException("The segment size must be at least 4 bytes: " + segmentSize);
+        }
+        long startTime = System.nanoTime();
+        long startChars = countedChars;
+        // Decodes like In and trainStream: malformed bytes become replacement characters
+        CharsetDecoder decoder = StandardCharsets.UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE)
+                .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        char[] buffer = new char[windowLength + CHUNK_SIZE];
+        CharBuffer chars = CharBuffer.wrap(buffer);
+        int carried = 0;
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            long size = channel.size();
+            long position = 0;
+            boolean lastSegment = false;
+            while (!lastSegment) {
+                long mappedSize = Math.min(size - position, segmentSize);
+                lastSegment = position + mappedSize == size;
+                MappedByteBuffer bytes = channel.map(FileChannel.MapMode.READ_ONLY, position, mappedSize);
+                CoderResult result;
+                do {
+                    chars.limit(carried + CHUNK_SIZE).position(carried);
+                    result = decoder.decode(bytes, chars, lastSegment);
+                    if (lastSegment && result.isUnderflow()) {
+                        decoder.flush(chars);
+                    }
+                    carried = countChunk(buffer, carried, chars.position() - carried);
+                } while (result.isOverflow());
+                // An incomplete character at the end of the segment is left in
+                // the mapping, and is decoded again from the next segment
+                position += bytes.position();
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + fileName, e);
+        }
+        calculateDirtyProbabilities();
+        reportTraining(startChars, startTime);
+    }
+
+    // Counts the windows of a chunk of text that was read into the given buffer,
+    // after the window carried over from the previous chunk.
+    // Removes the carriage returns of the chunk, and moves the window to carry
+    // over to the next chunk to the start of the buffer. Returns its length.
+    private int countChunk(char[] buffer, int carried, int read) {
+        int length = carried;
+        for (int i = carried; i < carried + read; i++) {
+            if (buffer[i] != '\r') {
+                buffer[length++] = buffer[i];
+            }
+        }
+        countWindows(CharBuffer.wrap(buffer, 0, length));
+        int carry = Math.min(length, windowLength);
+        System.arraycopy(buffer, length - carry, buffer, 0, carry);
+        return carry;
+    }
+
+    /**
+     * Builds a language model from the text in the given file (the corpus),
+     * using the given number of threads. The corpus is split into shards, each
+     * overlapping the next one by windowLength characters, and the windows of
+     * each shard are counted by a separate task in a ForkJoinPool. The counts
+     * of neighboring shards are merged in order, and the probabilities are
+     * computed once at the end. Builds exactly the same model as train.
+     * Throws an IllegalArgumentException if the number of threads is not positive.
+     */
+    public void trainParallel(String fileName, int threads) {
+        if (threads < 1) {
+            throw new IllegalArgumentException("The number of threads must be positive: " + threads);
+        }
+        long startTime = System.nanoTime();
+        long startChars = countedChars;
+        In in = new In(fileName);
+        String text = in.readAll().replace("\r", "");
+
+        // The number of windows (positions that have a follower) in the text
+        int windows = text.length() - windowLength;
+        if (windows > 0) {
+            int shardSize = Math.max(windows / threads, MIN_SHARD_SIZE);
+            ForkJoinPool pool = new ForkJoinPool(threads);
+            try {
+                merge(pool.invoke(new ShardTask(text, 0, windows, shardSize)));
+            } finally {
+                pool.shutdown();
+            }
+            countedChars += windows;
+        }
+        calculateDirtyProbabilities();
+        reportTraining(startChars, startTime);
+    }
+
+    // Reports a training call, that started at the given time and count of
+    // characters, to the metrics of this model.
+    private void reportTraining(long startChars, long startTime) {
+        if (metrics != null) {
+            metrics.trained(countedChars - startChars, System.nanoTime() - startTime);
+        }
+    }
+
+    // Counts the windows that start in a range of positions of a corpus.
+    // Splits the range in two halves until it is small enough, and merges the
+    // counts of the right half into the counts of the left half.
+    private class ShardTask extends RecursiveTask<LanguageModel> {
 
-            List probs = CharDataMap.get(window);
+        private static final long serialVersionUID = 1L;
+
+        private final String text;
+        private final int from;
+        private final int to;
+        private final int shardSize;
+
+        ShardTask(String text, int from, int to, int shardSize) {
+            this.text = text;
+            this.from = from;
+            this.to = to;
+            this.shardSize = shardSize;
+        }
+
+        protected LanguageModel compute() {
+            if (to - from <= shardSize) {
+                LanguageModel counts = new LanguageModel(LanguageModel.this);
+                // The shard ends with the window of its last position
+                counts.countWindows(text.subSequence(from, to + windowLength));
+                return counts;
+            }
+            int middle = (from + to) >>> 1;
+            ShardTask left = new ShardTask(text, from, middle, shardSize);
+            left.fork();
+            LanguageModel rightCounts = new ShardTask(text, middle, to, shardSize).compute();
+            LanguageModel leftCounts = left.join();
+            leftCounts.merge(rightCounts);
+            return leftCounts;
+        }
+    }
+
+    // Adds the counts of the given model, which were counted on text that
+    // follows the text counted by this model, to the counts of this model.
+    // New windows are added in the order of the given model, and the followers
+    // of each window end up in the same order as if the two texts were counted
+    // one after the other.
+    private void merge(LanguageModel counts) {
+        for (int entry = 0; entry < counts.listIndex.size(); entry++) {
+            String window = counts.listIndex.keyAt(entry);
+            List followers = counts.listIndex.valueAt(entry);
+            List probs = listIndex.get(window);
+            if (probs == null) {
+                listIndex.put(listIndex.hash(window, 0), window, followers);
+                dirtyLists.add(followers);
+                windowCreated();
+                followersChanged(0, followers.getSize());
+            } else {
+                markDirty(probs);
+                int before = probs.getSize();
+                // Adds the followers in the order in which they were first seen
+                CharData[] added = followers.toArray();
+                for (int i = added.length - 1; i >= 0; i--) {
+                    probs.add(added[i].chr, added[i].count);
+                }
+                followersChanged(before, probs.getSize());
+            }
+        }
+        for (int entry = 0; entry < counts.tableIndex.size(); entry++) {
+            String window = counts.tableIndex.keyAt(entry);
+            FollowerTable followers = counts.tableIndex.valueAt(entry);
+            FollowerTable table = tableIndex.get(window);
+            if (table == null) {
+                tableIndex.put(tableIndex.hash(window, 0), window, followers);
+                // The probabilities of a shard are never computed, so its tables
+                // are already dirty, and only the lazy check of markDirty applies
+                if (!lazyProbabilities) {
+                    dirtyTables.add(followers);
+                }
+                windowCreated();
+                followersChanged(0, followers.getSize());
+            } else {
+                markDirty(table);
+                int before = table.getSize();
+                for (int i = followers.getSize() - 1; i >= 0; i--) {
+                    table.add(followers.chrAt(i), followers.countAt(i));
+                }
+                followersChanged(before, table.getSize());
+            }
+        }
+    }
+
+    // Makes room for the given number of windows in an empty model, so that
+    // loading them does not resize its index again and again.
+    void ensureWindowCapacity(int windows) {
+        if (getWindowCount() > 0) {
+            return;
+        }
+        if (compact) {
+            tableIndex.ensureCapacity(windows);
+        } else {
+            listIndex.ensureCapacity(windows);
+        }
+    }
+
+    // Adds the given counts of the first size given followers to the given
+    // window. If the window is new, adds it to this model. Followers that are
+    // new are added as the first followers of the window, one after the other.
+    // Finds the window once, for all its followers. Does not compute probabilities.
+    void addCounts(String window, char[] chrs, int[] counts, int size) {
+        if (compact) {
+            FollowerTable table = tableIndex.get(window);
+            if (table == null) {
+                table = new FollowerTable(!lazyProbabilities);
+                tableIndex.put(tableIndex.hash(window, 0), window, table);
+                windowCreated();
+            }
+            markDirty(table);
+            int before = table.getSize();
+            for (int i = 0; i < size; i++) {
+                table.add(chrs[i], counts[i]);
+            }
+            followersChanged(before, table.getSize());
+        } else {
+            List probs = listIndex.get(window);
             if (probs == null) {
                 probs = new List();
-                CharDataMap.put(window, probs);
+                listIndex.put(listIndex.hash(window, 0), window, probs);
+                windowCreated();
             }
-            probs.update(c);
+            markDirty(probs);
+            int before = probs.getSize();
+            for (int i = 0; i < size; i++) {
+                probs.add(chrs[i], counts[i]);
+            }
+            followersChanged(before, probs.getSize());
+        }
+    }
+
+    // Returns true if this model stores its followers in compact tables.
+    boolean isCompact() {
+        return compact;
+    }
+
+    /**
+     * Saves this model to the given file, in a compact binary format.
+     * See ModelSnapshot for the format.
+     */
+    public void save(String fileName) {
+        ModelSnapshot.save(this, fileName);
+    }
+
+    /**
+     * Saves this model to the given file, in the format of MappedModel,
+     * which generates texts directly from the file, without loading it.
+     * The mapped model draws by cumulative probabilities, so it generates the
+     * same texts as this model only if this model uses the default sampling
+     * (neither alias sampling nor lazy probabilities).
+     */
+    public void saveMapped(String fileName) {
+        MappedModel.write(this, fileName);
+    }
+
+    /**
+     * Loads the model saved in the given file into this model, which should be
+     * empty and have the same window length as the saved model. Loading is much
+     * faster than training, and the loaded model generates the same texts as
+     * the saved model, for the same seed.
+     */
+    public void load(String fileName) {
+        ModelSnapshot.load(this, fileName);
+        calculateDirtyProbabilities();
+    }
+
+    // Records that the counts of the given list are about to change,
+    // so its probabilities will be computed again.
+    private void markDirty(List probs) {
+        if (!probs.isDirty()) {
+            dirtyLists.add(probs);
         }
+    }
 
-        for (List probs : CharDataMap.values()) {
+    // Records that the counts of the given table are about to change,
+    // so its probabilities will be computed again. Tables without stored
+    // probabilities never need to be computed again.
+    private void markDirty(FollowerTable table) {
+        if (!lazyProbabilities && !table.isDirty()) {
+            dirtyTables.add(table);
+        }
+    }
+
+    // Computes the probabilities of the followers of the windows whose
+    // counts changed since their probabilities were last computed.
+    private void calculateDirtyProbabilities() {
+        for (List probs : dirtyLists) {
             calculateProbabilities(probs);
         }
+        for (FollowerTable table : dirtyTables) {
+            table.calculateProbabilities();
+            if (aliasSampling) {
+                table.buildAliasTable();
+            }
+        }
+        // New lists, so that the capacity of a large training is released
+        dirtyLists = new ArrayList<List>();
+        dirtyTables = new ArrayList<FollowerTable>();
+    }
+
+    // Counts the followers of all the windows in the given text.
+    // Linear training (Standard "sliding window"): the hash of each window is
+    // rolled from the previous one, so no String is created for a window,
+    // except the first time that it is seen.
+    private void countWindows(CharSequence text) {
+        if (text.length() <= windowLength) {
+            return;
+        }
+        long hash = listIndex.hash(text, 0);
+        for (int i = 0; i < text.length() - windowLength; i++) {
+            char c = text.charAt(i + windowLength);
+
+            if (compact) {
+                FollowerTable table = tableIndex.get(hash, text, i);
+                if (table == null) {
+                    String window = text.subSequence(i, i + windowLength).toString();
+                    table = new FollowerTable(!lazyProbabilities);
+                    tableIndex.put(hash, window, table);
+                    windowCreated();
+                }
+                markDirty(table);
+                int before = table.getSize();
+                int depth = table.update(c);
+                if (metrics != null) {
+                    reportScan(depth, before, table.getSize());
+                }
+            } else {
+                List probs = listIndex.get(hash, text, i);
+                if (probs == null) {
+                    String window = text.subSequence(i, i + windowLength).toString();
+                    probs = new List();
+                    listIndex.put(hash, window, probs);
+                    windowCreated();
+                }
+                markDirty(probs);
+                int before = probs.getSize();
+                int depth = probs.update(c);
+                if (metrics != null) {
+                    reportScan(depth, before, probs.getSize());
+                }
+            }
+            hash = listIndex.roll(hash, text.charAt(i), c);
+        }
+        countedChars += text.length() - windowLength;
+    }
+
+    // Reports a new window to the metrics of this model.
+    private void windowCreated() {
+        fallbackWindow = null;
+        if (metrics != null) {
+            metrics.windowCreated();
+        }
+    }
+
+    // Reports to the metrics of this model that training counted a follower,
+    // with the given linear scan depth (negative if it was found through the
+    // index of a large table), and the number of followers of its window
+    // changed from the given number to the other.
+    private void reportScan(int depth, int before, int after) {
+        if (depth >= 0) {
+            metrics.followerScanned(depth);
+        }
+        followersChanged(before, after);
+    }
+
+    // Reports to the metrics of this model that the number of followers of a
+    // window changed from the given number (0 for a new window) to the other.
+    private void followersChanged(int before, int after) {
+        if (metrics != null && after != before) {
+            metrics.followersChanged(before, after);
+        }
     }
 
     // Computes and sets the probabilities (p and cp fields) of all the
@@ -82,11 +656,18 @@ public class LanguageModel {
             cumulativeProb += cd.p;
             cd.cp = cumulativeProb;
         }
+        probs.markClean();
     }
 
     // Returns a random character from the given probabilities list.
     public char getRandomChar(List probs) {
-        double r = randomGenerator.nextDouble();
+        return getRandomChar(probs, randomGenerator);
+    }
+
+    // Returns a random character from the given probabilities list,
+    // using the given random number generator.
+    private char getRandomChar(List probs, RandomGenerator random) {
+        double r = random.nextDouble();
         ListIterator itr = probs.listIterator(0);
         while (itr.hasNext()) {
             CharData cd = itr.next();
@@ -98,53 +679,255 @@ public class LanguageModel {
         return probs.get(probs.getSize() - 1).chr;
     }
 
+    // Returns a random character from the given follower table.
+    // Finds the character using binary search over the cumulative probabilities,
+    // so it returns the same character as getRandomChar(List) for the same list.
+    // With alias sampling, draws the character from the alias table instead.
+    // With lazy probabilities, draws the character by its count instead.
+    public char getRandomChar(FollowerTable table) {
+        return getRandomChar(table, randomGenerator);
+    }
+
+    // Returns a random character from the given follower table,
+    // using the given random number generator.
+    private char getRandomChar(FollowerTable table, RandomGenerator random) {
+        if (lazyProbabilities) {
+            return table.charAtCount(random.nextInt(table.getTotal()));
+        }
+        double r = random.nextDouble();
+        if (aliasSampling) {
+            return table.charAtAlias(r);
+        }
+        return table.charAtProbability(r);
+    }
+
     /**
      * Generates a random text, based on the probabilities that were learned during
      * training.
      */
     public String generate(String initialText, int textLength) {
-        if (initialText.length() < windowLength) {
+        // The text is built in place, instead of copying it on every character
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        return generate(initialText, textLength, randomGenerator, generatedText);
+    }
+
+    /**
+     * Generates random texts for all the given requests, and returns them in
+     * the order of the requests. Each request draws its characters from its
+     * own random number generator, seeded by the seed of the request, so its
+     * text is the same text that generate returns for a model constructed
+     * with that seed, regardless of the other requests of the batch.
+     * Does not use the random number generator of this model.
+     */
+    public String[] generateBatch(GenerationRequest[] requests) {
+        String[] texts = new String[requests.length];
+        // A single buffer, sized for the longest request, is shared by all the requests
+        int capacity = 0;
+        for (GenerationRequest request : requests) {
+            capacity = Math.max(capacity, Math.max(request.textLength, request.initialText.length()));
+        }
+        StringBuilder generatedText = new StringBuilder(capacity);
+        for (int i = 0; i < requests.length; i++) {
+            generatedText.setLength(0);
+            texts[i] = generate(requests[i], generatedText);
+        }
+        return texts;
+    }
+
+    /**
+     * Generates a random text for the given request, drawing its characters
+     * from its own random number generator, seeded by the seed of the request.
+     * Does not use the random number generator of this model, so once the
+     * model is trained, many threads may generate texts at the same time.
+     */
+    public String generate(GenerationRequest request) {
+        StringBuilder generatedText = new StringBuilder(
+                Math.max(request.textLength, request.initialText.length()));
+        return generate(request, generatedText);
+    }
+
+    // Generates a random text for the given request into the given empty buffer.
+    private String generate(GenerationRequest request, StringBuilder generatedText) {
+        return generate(request.initialText, request.textLength, new Random(request.seed), generatedText);
+    }
+
+    /**
+     * Generates a random text, drawing its characters from the given random
+     * number generator instead of the generator of this model. Once the model
+     * is trained, many threads may generate texts at the same time, each with
+     * its own generator (see randomStream), without contending on a shared
+     * generator. The same generator state always produces the same text.
+     */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        return generate(initialText, textLength, random, generatedText);
+    }
+
+    /**
+     * Returns a new random number generator for the stream with the given id.
+     * The generator is derived from the seed of this model and the id only, so
+     * a model constructed with the same seed returns a generator of the same
+     * stream for the same id, and generate(initialText, textLength,
+     * randomStream(id)) returns the same text, on any thread. Generators of
+     * different ids start at unrelated positions of a sequence of length 2^64,
+     * so their streams are practically independent.
+     * For example, thread i of n threads can generate with randomStream(i),
+     * or request r of a batch with randomStream(r).
+     */
+    public SplittableRandom randomStream(long id) {
+        return new SplittableRandom(mix(streamSeed * 0x9E3779B97F4A7C15L + id));
+    }
+
+    // Scrambles the bits of the given value (the finalizer of MurmurHash3),
+    // so that neighboring stream ids get unrelated seeds.
+    private static long mix(long value) {
+        value = (value ^ (value >>> 33)) * 0xFF51AFD7ED558CCDL;
+        value = (value ^ (value >>> 33)) * 0xC4CEB93FE1A85EC1L;
+        return value ^ (value >>> 33);
+    }
+
+    // Generates a random text into the given empty buffer, drawing its
+    // characters from the given random number generator.
+    private String generate(String initialText, int textLength, RandomGenerator random,
+            StringBuilder generatedText) {
+        // Nothing was trained (no window has followers), or the initial text is too short
+        if (getWindowCount() == 0 || initialText.length() < windowLength) {
             return initialText;
         }
+        long startTime = metrics == null ? 0 : System.nanoTime();
 
-        String window = initialText.substring(initialText.length() - windowLength);
-        String generatedText = initialText;
+        generatedText.append(initialText);
+        // The current window is always the tail of the generated text.
+        // Its hash is rolled on every character, so no String is created for it.
+        int windowStart = generatedText.length() - windowLength;
+        long hash = listIndex.hash(generatedText, windowStart);
 
         // Loop until we reach the exact requested length
         while (generatedText.length() < textLength) {
-            List probs = CharDataMap.get(window);
+            int nextChar = randomFollower(hash, generatedText, windowStart, random);
 
             // FIX 2: Survival Mode (Dead End Handler)
-            // If the current window has no known followers (probs is null),
+            // If the current window has no known followers,
             // we must recover instead of returning early.
-            if (probs == null) {
+            if (nextChar < 0) {
+                if (metrics != null) {
+                    metrics.deadEndRecovered();
+                }
                 // Try resetting to the initial seed
-                window = initialText.substring(0, windowLength);
-                probs = CharDataMap.get(window);
-                
+                String window = initialText.substring(0, windowLength);
+                nextChar = randomFollower(listIndex.hash(window, 0), window, 0, random);
+
                 // If even the seed is missing (rare), grab ANY valid window from the map
-                if (probs == null) {
-                    for (String key : CharDataMap.keySet()) {
-                        window = key;
-                        break; // Just grab the first available key
-                    }
-                    probs = CharDataMap.get(window);
+                if (nextChar < 0) {
+                    window = fallbackWindow();
+                    nextChar = randomFollower(listIndex.hash(window, 0), window, 0, random);
                 }
             }
 
-            char nextChar = getRandomChar(probs);
-            generatedText += nextChar;
-            window = generatedText.substring(generatedText.length() - windowLength);
+            generatedText.append((char) nextChar);
+            hash = listIndex.roll(hash, generatedText.charAt(windowStart), (char) nextChar);
+            windowStart++;
+        }
+        if (metrics != null) {
+            metrics.generated(generatedText.length(), System.nanoTime() - startTime);
+        }
+        return generatedText.toString();
+    }
+
+    // Returns a random follower of the window that starts at the given position
+    // of the text and has the given hash, drawn with the given random number
+    // generator, or -1 if the window has no known followers in this model.
+    private int randomFollower(long hash, CharSequence text, int start, RandomGenerator random) {
+        if (compact) {
+            FollowerTable table = tableIndex.get(hash, text, start);
+            return table == null ? -1 : getRandomChar(table, random);
+        }
+        List probs = listIndex.get(hash, text, start);
+        return probs == null ? -1 : getRandomChar(probs, random);
+    }
+
+    /** Returns the number of windows in this model. */
+    public int getWindowCount() {
+        return compact ? tableIndex.size() : listIndex.size();
+    }
+
+    /**
+     * Returns the number of windows of this model by their number of
+     * followers: element i counts the windows with 2^i to 2^(i+1) - 1 followers.
+     */
+    public long[] followerCountHistogram() {
+        // A window has at most 2^16 followers, one per char value
+        long[] histogram = new long[17];
+        if (compact) {
+            for (int entry = 0; entry < tableIndex.size(); entry++) {
+                histogram[31 - Integer.numberOfLeadingZeros(tableIndex.valueAt(entry).getSize())]++;
+            }
+        } else {
+            for (int entry = 0; entry < listIndex.size(); entry++) {
+                histogram[31 - Integer.numberOfLeadingZeros(listIndex.valueAt(entry).getSize())]++;
+            }
+        }
+        return histogram;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes that the windows and
+     * followers of this model take on the heap, assuming a 64-bit JVM with
+     * compressed references. Walks the whole model, so it is meant for
+     * monitoring, not for the hot path.
+     */
+    public long estimateHeapSize() {
+        // The index holds the windows too
+        long bytes = 0;
+        if (compact) {
+            for (int entry = 0; entry < tableIndex.size(); entry++) {
+                bytes += tableIndex.valueAt(entry).heapSize();
+            }
+            return bytes + tableIndex.heapSize();
+        }
+        for (int entry = 0; entry < listIndex.size(); entry++) {
+            bytes += listIndex.valueAt(entry).heapSize();
+        }
+        return bytes + listIndex.heapSize();
+    }
+
+    // Rounds the given size up to the 8-byte alignment of heap objects.
+    static long align(long bytes) {
+        return (bytes + 7) & ~7L;
+    }
+
+    // Returns the first window in the iteration order of a HashMap that got
+    // the windows of this model in the order in which they were added, or null
+    // if this model has no windows. Generate falls back to this window when
+    // even the initial window is missing.
+    String fallbackWindow() {
+        WindowIndex<?> index = compact ? tableIndex : listIndex;
+        String window = fallbackWindow;
+        if (window == null && index.size() > 0) {
+            window = index.keyAt(index.hashMapOrder()[0]);
+            fallbackWindow = window;
+        }
+        return window;
+    }
+
+    // Returns a map from the windows of this model, which uses lists, to their
+    // lists of charachter data objects. The map is built on demand, from the
+    // index, in the order in which the windows were added, so it iterates them
+    // in the same order as toString.
+    HashMap<String, List> charDataMap() {
+        HashMap<String, List> map = new HashMap<String, List>();
+        for (int entry = 0; entry < listIndex.size(); entry++) {
+            map.put(listIndex.keyAt(entry), listIndex.valueAt(entry));
         }
-        return generatedText;
+        return map;
     }
 
     /** Returns a string representing the map of this language model. */
     public String toString() {
         StringBuilder str = new StringBuilder();
-        for (String key : CharDataMap.keySet()) {
-            List keyProbs = CharDataMap.get(key);
-            str.append(key + " : " + keyProbs + "\n");
+        WindowIndex<?> index = compact ? tableIndex : listIndex;
+        for (int entry : index.hashMapOrder()) {
+            str.append(index.keyAt(entry) + " : " + index.valueAt(entry) + "\n");
         }
         return str.toString();
     }
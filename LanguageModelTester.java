@@ -1,6 +1,19 @@
 import java.io.BufferedWriter;
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
+import java.io.IOException;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 public class LanguageModelTester {
         public static void main(String[] args) {
@@ -19,11 +32,91 @@ public class LanguageModelTester {
             case "generate":
                 result = testGenerate();
                 break;
+            case "concurrentTrain":
+                result = testConcurrentTrain();
+                break;
+            case "saveLoad":
+                result = testSaveLoad();
+                break;
+            case "mappedModel":
+                result = testMappedModel();
+                break;
+            case "trainText":
+                result = testTrainText();
+                break;
+            case "lazyProbabilities":
+                result = testLazyProbabilities();
+                break;
+            case "metrics":
+                result = testMetrics();
+                break;
+            case "generateBatch":
+                result = testGenerateBatch();
+                break;
+            case "generationServer":
+                result = testGenerationServer();
+                break;
+            case "randomStream":
+                result = testRandomStream();
+                break;
+            case "backoff":
+                result = testBackoff();
+                break;
+            case "backoffEdges":
+                result = testBackoffEdges();
+                break;
+            case "suffixAutomaton":
+                result = testSuffixAutomaton();
+                break;
+            case "offHeap":
+                result = testOffHeap();
+                break;
+            case "byteModel":
+                result = testByteModel();
+                break;
+            case "compactModel":
+                result = testCompactModel();
+                break;
+            case "aliasSampling":
+                result = testAliasSampling();
+                break;
+            case "emptyModel":
+                result = testEmptyModel();
+                break;
+            case "trainStream":
+                result = testTrainStream();
+                break;
+            case "trainMapped":
+                result = testTrainMapped();
+                break;
+            case "trainParallel":
+                result = testTrainParallel();
+                break;
             case "all":
                 result = testCalculateProbabilities();
                 result = result && testGetRandomChar();
                 result = result && testTrain();
                 result = result && testGenerate();
+                result = result && testConcurrentTrain();
+                result = result && testSaveLoad();
+                result = result && testMappedModel();
+                result = result && testTrainText();
+                result = result && testLazyProbabilities();
+                result = result && testMetrics();
+                result = result && testGenerateBatch();
+                result = result && testGenerationServer();
+                result = result && testRandomStream();
+                result = result && testBackoff();
+                result = result && testBackoffEdges();
+                result = result && testSuffixAutomaton();
+                result = result && testOffHeap();
+                result = result && testByteModel();
+                result = result && testCompactModel();
+                result = result && testAliasSampling();
+                result = result && testEmptyModel();
+                result = result && testTrainStream();
+                result = result && testTrainMapped();
+                result = result && testTrainParallel();
                 break;
             default:
                 break;
@@ -166,6 +259,973 @@ public class LanguageModelTester {
         return res;
     }
 
+    // Test method for the compact mode: a model that stores its followers in
+    // FollowerTables must show the same windows and probabilities as a
+    // List-based model, and generate the same texts, also through dead ends.
+    public static boolean testCompactModel() {
+        boolean res = true;
+        int [] windowLengths = {2, 3, 7};
+        for (int i = 0; i < windowLengths.length && res; i++) {
+            LanguageModel listModel = new LanguageModel(windowLengths[i], 20);
+            listModel.train("originofspecies.txt");
+            LanguageModel compactModel = new LanguageModel(windowLengths[i], 20, true);
+            compactModel.train("originofspecies.txt");
+            String initialText = "Natural".substring(0, windowLengths[i]);
+            String expected = listModel.toString() + listModel.generate(initialText, 1000);
+            String actual = compactModel.toString() + compactModel.generate(initialText, 1000);
+            res = expected.equals(actual);
+        }
+        LanguageModel listModel = new LanguageModel(2, 20);
+        listModel.trainText("commitee_");
+        LanguageModel compactModel = new LanguageModel(2, 20, true);
+        compactModel.trainText("commitee_");
+        res = res && listModel.generate("co", 50).equals(compactModel.generate("co", 50));
+        // A table with many followers finds them by its index, also in a copy
+        List list = new List();
+        FollowerTable table = new FollowerTable();
+        String followers = "the quick brown fox jumps over the lazy dog THE QUICK BROWN FOX";
+        for (int i = 0; i < followers.length(); i++) {
+            list.update(followers.charAt(i));
+            table.update(followers.charAt(i));
+        }
+        new LanguageModel(1).calculateProbabilities(list);
+        table.calculateProbabilities();
+        FollowerTable copy = table.copy();
+        copy.update('!');
+        copy.update('t');
+        res = res && table.toString().equals(list.toString())
+                && table.indexOf('!') == -1 && copy.indexOf('!') == 0
+                && copy.countAt(copy.indexOf('t')) == 3 && table.countAt(table.indexOf('t')) == 2;
+        // Ten of the windows of length 1 of this text fall into bucket 0 of a
+        // HashMap with 16 buckets, which makes it resize. Both kinds of models
+        // still order their windows, and fall back to the first of them, as a
+        // real HashMap does: "z" was never seen, and "@" is followed by "P".
+        String collisions = "0@P`p \u00e0\u00f0\u00c0\u00d0\u00b0 x";
+        LanguageModel mapModel = new LanguageModel(1, 20);
+        mapModel.trainText(collisions);
+        StringBuilder expectedOrder = new StringBuilder();
+        for (Map.Entry<String, List> entry : mapModel.charDataMap().entrySet()) {
+            expectedOrder.append(entry.getKey() + " : " + entry.getValue() + "\n");
+        }
+        for (int i = 0; i < 2; i++) {
+            LanguageModel model = new LanguageModel(1, 20, i == 1);
+            model.trainText(collisions);
+            res = res && model.toString().equals(expectedOrder.toString())
+                    && model.generate("z", 2).equals("zP");
+        }
+        // Latin-1 followers are indexed densely, until a follower above Latin-1
+        // turns the index into a hashed one
+        followers = "abcdefghijklmnopqrstuvwxyz\u03bb\u00ff\u03bcaz\u03bb";
+        list = new List();
+        table = new FollowerTable();
+        for (int i = 0; i < followers.length(); i++) {
+            list.update(followers.charAt(i));
+            table.update(followers.charAt(i));
+            for (int j = 0; j <= i && res; j++) {
+                res = table.indexOf(followers.charAt(j)) == list.indexOf(followers.charAt(j));
+            }
+        }
+        res = res && table.indexOf('\u0100') == -1;
+        if (!res) {
+            System.out.println("CompactModel Test failed");
+        }
+        return res;
+    }
+
+    // Test method for alias sampling: the alias table of a window must draw
+    // each follower with its probability, and turning alias sampling on after
+    // training must build the alias tables of the trained windows.
+    public static boolean testAliasSampling() {
+        FollowerTable table = new FollowerTable();
+        String followers = "computer_science";
+        for (int i = 0; i < followers.length(); i++) {
+            table.update(followers.charAt(followers.length() - 1 - i));
+        }
+        table.buildAliasTable();
+        // Draws with evenly spaced random numbers, so each follower is drawn
+        // in proportion to the share of [0,1) that the alias table gives it
+        int draws = 1 << 20;
+        int [] counts = new int[Character.MAX_VALUE + 1];
+        for (int i = 0; i < draws; i++) {
+            counts[table.charAtAlias((i + 0.5) / draws)]++;
+        }
+        boolean res = true;
+        for (int i = 0; i < table.getSize() && res; i++) {
+            double expected = (double) table.countAt(i) / table.getTotal();
+            double actual = (double) counts[table.chrAt(i)] / draws;
+            res = Math.abs(expected - actual) < 1e-4;
+            if (!res) {
+                System.out.println("Expected: " + table.chrAt(i) + " " + expected);
+                System.out.println("Actual: " + table.chrAt(i) + " " + actual);
+            }
+        }
+
+        LanguageModel before = new LanguageModel(3, 20, true);
+        before.setAliasSampling(true);
+        before.train("originofspecies.txt");
+        LanguageModel after = new LanguageModel(3, 20, true);
+        after.train("originofspecies.txt");
+        after.setAliasSampling(true);
+        try {
+            res = res && before.generate("Nat", 1000).equals(after.generate("Nat", 1000));
+        } catch (NullPointerException e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("AliasSampling Test failed");
+        }
+        return res;
+    }
+
+    // Test method for generating from a model without windows: a model that
+    // was trained only on a text shorter than its window must return the
+    // initial text, and so must a MappedModel of it.
+    public static boolean testEmptyModel() {
+        boolean res = true;
+        boolean [] compact = {false, true};
+        for (int i = 0; i < compact.length; i++) {
+            LanguageModel model = new LanguageModel(3, 20, compact[i]);
+            model.trainText("ab");
+            String generatedText = model.generate("abc", 10);
+            res = res && generatedText.equals("abc");
+            if (!res) {
+                System.out.println("Expected: abc");
+                System.out.println("Actual: " + generatedText);
+            }
+        }
+        try {
+            File file = File.createTempFile("empty", ".map");
+            file.deleteOnExit();
+            LanguageModel model = new LanguageModel(3, 20);
+            model.trainText("ab");
+            model.saveMapped(file.getPath());
+            String generatedText = new MappedModel(file.getPath(), 20).generate("abc", 10);
+            res = res && generatedText.equals("abc");
+            if (!res) {
+                System.out.println("Expected: abc");
+                System.out.println("Actual: " + generatedText);
+            }
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("EmptyModel Test failed");
+        }
+        return res;
+    }
+
+    // Writes the given corpus to a temporary file with Windows line endings
+    // (CRLF), and returns its path.
+    private static String crlfCopy(String fileName) throws Exception {
+        File file = File.createTempFile("crlf", ".txt");
+        file.deleteOnExit();
+        String text = new In(fileName).readAll().replace("\r", "").replace("\n", "\r\n");
+        BufferedWriter bw = new BufferedWriter(new FileWriter(file, StandardCharsets.UTF_8));
+        bw.write(text);
+        bw.close();
+        return file.getPath();
+    }
+
+    // Test method for the trainStream() method: a model trained from a stream
+    // must equal a model trained by train(), for a corpus that spans many
+    // chunks, with CRLF line endings and non-ASCII characters.
+    public static boolean testTrainStream() {
+        boolean res = true;
+        try {
+            String fileName = crlfCopy("originofspecies.txt");
+            int [] windowLengths = {3, 7};
+            for (int i = 0; i < windowLengths.length && res; i++) {
+                LanguageModel trained = new LanguageModel(windowLengths[i], 20);
+                trained.train(fileName);
+                LanguageModel streamed = new LanguageModel(windowLengths[i], 20);
+                streamed.trainStream(fileName);
+                String initialText = "Natural".substring(0, windowLengths[i]);
+                res = trained.toString().equals(streamed.toString())
+                        && trained.generate(initialText, 1000).equals(streamed.generate(initialText, 1000));
+            }
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("TrainStream Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the trainMapped() method: a model trained from a mapped
+    // file must equal a model trained by train(), also when the file is mapped
+    // in many small segments, whose boundaries split windows, CRLF pairs and
+    // the bytes of non-ASCII characters.
+    public static boolean testTrainMapped() {
+        boolean res = true;
+        try {
+            String fileName = crlfCopy("originofspecies.txt");
+            // An odd segment size, so boundaries fall at every byte offset of a character
+            long [] segmentSizes = {1L << 30, 4099};
+            for (int i = 0; i < segmentSizes.length && res; i++) {
+                LanguageModel trained = new LanguageModel(7, 20);
+                trained.train(fileName);
+                LanguageModel mapped = new LanguageModel(7, 20);
+                mapped.trainMapped(fileName, segmentSizes[i]);
+                res = trained.toString().equals(mapped.toString())
+                        && trained.generate("Natural", 1000).equals(mapped.generate("Natural", 1000));
+            }
+            // The smallest segment holds a 4-byte character; a smaller one is rejected
+            File file = File.createTempFile("mapped", ".txt");
+            file.deleteOnExit();
+            String text = "a\uD83D\uDE00b\u00E9c\u20ACd\uD83D\uDE00e";
+            Files.write(file.toPath(), text.getBytes(StandardCharsets.UTF_8));
+            LanguageModel trained = new LanguageModel(2, 20);
+            trained.trainText(text);
+            LanguageModel mapped = new LanguageModel(2, 20);
+            mapped.trainMapped(file.getPath(), 4);
+            res = res && trained.toString().equals(mapped.toString());
+            try {
+                new LanguageModel(2, 20).trainMapped(file.getPath(), 3);
+                res = false;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("TrainMapped Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the trainParallel() method: a model trained in shards
+    // must equal a model trained by train(), and the number of threads must
+    // be positive.
+    public static boolean testTrainParallel() {
+        LanguageModel trained = new LanguageModel(7, 20);
+        trained.train("originofspecies.txt");
+        LanguageModel parallel = new LanguageModel(7, 20);
+        parallel.trainParallel("originofspecies.txt", 4);
+        boolean res = trained.toString().equals(parallel.toString())
+                && trained.generate("Natural", 1000).equals(parallel.generate("Natural", 1000));
+        // A lazy model must keep its smaller tables when trained in parallel
+        LanguageModel lazyTrained = new LanguageModel(7, 20, true);
+        lazyTrained.setLazyProbabilities(true);
+        lazyTrained.train("originofspecies.txt");
+        LanguageModel lazyParallel = new LanguageModel(7, 20, true);
+        lazyParallel.setLazyProbabilities(true);
+        lazyParallel.trainParallel("originofspecies.txt", 4);
+        res = res && lazyTrained.estimateHeapSize() == lazyParallel.estimateHeapSize()
+                && lazyTrained.generate("Natural", 1000).equals(lazyParallel.generate("Natural", 1000));
+        int [] threads = {0, -1};
+        for (int i = 0; i < threads.length; i++) {
+            try {
+                new LanguageModel(7, 20).trainParallel("originofspecies.txt", threads[i]);
+                res = false;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        if (!res) {
+            System.out.println("TrainParallel Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the ConcurrentLanguageModel.trainText() method:
+    // several threads train the same text while another thread generates,
+    // and every count must end up multiplied by the number of writers.
+    public static boolean testConcurrentTrain() {
+        String text = "you_cannot_teach_a_man_anything;_you_can_only_help_him_find_it_within_himself";
+        int writers = 4;
+        ConcurrentLanguageModel model = new ConcurrentLanguageModel(2);
+        Thread[] threads = new Thread[writers + 1];
+        for (int i = 0; i < writers; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < 100; j++) {
+                    model.trainText(text);
+                }
+            });
+        }
+        threads[writers] = new Thread(() -> {
+            java.util.Random random = new java.util.Random(20);
+            for (int j = 0; j < 100; j++) {
+                model.generate("yo", 50, random);
+            }
+        });
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        try {
+            for (Thread thread : threads) {
+                thread.join();
+            }
+        } catch (InterruptedException e) {
+            return false;
+        }
+
+        boolean res = true;
+        for (int i = 0; i < text.length() - 2; i++) {
+            String window = text.substring(i, i + 2);
+            FollowerTable table = model.getFollowers(window);
+            res = res && table != null;
+            if (table != null) {
+                // Counts the followers of the window in the text
+                List expected = new List();
+                for (int j = 0; j < text.length() - 2; j++) {
+                    if (text.startsWith(window, j)) {
+                        expected.update(text.charAt(j + 2));
+                    }
+                }
+                for (CharData cd : expected.toArray()) {
+                    int index = table.indexOf(cd.chr);
+                    res = res && index >= 0 && table.countAt(index) == cd.count * writers * 100;
+                }
+            }
+        }
+        // Long windows (hashed, not packed), trained from a StringBuilder
+        ConcurrentLanguageModel longModel = new ConcurrentLanguageModel(10);
+        longModel.trainText(new StringBuilder(text));
+        LanguageModel expectedModel = new LanguageModel(10);
+        expectedModel.trainText(text);
+        for (Map.Entry<String, List> entry : expectedModel.charDataMap().entrySet()) {
+            String window = entry.getKey();
+            FollowerTable table = longModel.getFollowers(window);
+            res = res && table != null && table.toString().equals(entry.getValue().toString());
+        }
+        res = res && longModel.getFollowers("not_a_window") == null;
+        if (!res) {
+            System.out.println("ConcurrentTrain Test failed");
+            System.out.println("Actual: " + model);
+        }
+        return res;
+    }
+
+    // Test method for the save() and load() methods:
+    // a loaded model must equal the saved one, and generate the same text.
+    public static boolean testSaveLoad() {
+        boolean result = true;
+        boolean [] compact = {false, true};
+        for (int i = 0; i < compact.length; i++) {
+            boolean res = true;
+            try {
+                File file = File.createTempFile("model", ".bin");
+                file.deleteOnExit();
+                LanguageModel saved = new LanguageModel(3, 20, compact[i]);
+                saved.train("originofspecies.txt");
+                saved.save(file.getPath());
+                LanguageModel loaded = new LanguageModel(3, 20, compact[i]);
+                loaded.load(file.getPath());
+                res = saved.toString().equals(loaded.toString())
+                        && saved.generate("Nat", 500).equals(loaded.generate("Nat", 500));
+            } catch (Exception e) {
+                res = false;
+            }
+            if (!res) {
+                System.out.println("SaveLoad Test " + i + " failed");
+            }
+            result = result && res;
+        }
+
+        // Corrupt files must be rejected with an IllegalArgumentException.
+        // Each has the magic, version 2, window length 2, a dictionary of 'a',
+        // and one window written in full: the first has a second character
+        // with index 5, the second has a follower with a count of 0, and the
+        // third has no followers.
+        byte[][] corrupt = {
+                {2, 2, 1, 'a', 1, 0, 0, 5, 0},
+                {2, 2, 1, 'a', 1, 0, 0, 0, 1, 0, 0},
+                {2, 2, 1, 'a', 1, 0, 0, 0, 0}};
+        boolean res = true;
+        for (int i = 0; i < corrupt.length; i++) {
+            for (int j = 0; j < compact.length; j++) {
+                try {
+                    File file = File.createTempFile("corrupt", ".bin");
+                    file.deleteOnExit();
+                    DataOutputStream out = new DataOutputStream(new FileOutputStream(file));
+                    out.writeInt(0x4C4D4F44);
+                    out.write(corrupt[i]);
+                    out.close();
+                    new LanguageModel(2, 20, compact[j]).load(file.getPath());
+                    res = false;
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                } catch (Exception e) {
+                    res = false;
+                }
+            }
+        }
+        if (!res) {
+            System.out.println("SaveLoad Test of a corrupt file failed");
+        }
+        return result && res;
+    }
+
+    // Test method for the trainText() method: after adding texts one by one,
+    // the probabilities of every window must be up to date, although each
+    // call recomputes only the windows that its text changed.
+    public static boolean testTrainText() {
+        String [] texts = {"linked_lists_are_fun", "elephant_have_big_ears", "ha", "lists_of_ears"};
+        LanguageModel model = new LanguageModel(2, 20);
+        for (int i = 0; i < texts.length; i++) {
+            model.trainText(texts[i]);
+        }
+        String actual = model.toString();
+        for (List probs : model.charDataMap().values()) {
+            model.calculateProbabilities(probs);
+        }
+        String expected = model.toString();
+        boolean res = expected.equals(actual);
+        if (!res) {
+            System.out.println("Expected: " + expected);
+            System.out.println("Actual: " + actual);
+        }
+        return res;
+    }
+
+    // Test method for the lazy probabilities mode: a model that stores only
+    // counts must show the same probabilities as a List-based model, and must
+    // generate only characters that follow the current window in the corpus.
+    public static boolean testLazyProbabilities() {
+        LanguageModel listModel = new LanguageModel(3, 20);
+        listModel.train("originofspecies.txt");
+        LanguageModel lazyModel = new LanguageModel(3, 20, true);
+        lazyModel.setLazyProbabilities(true);
+        lazyModel.train("originofspecies.txt");
+        boolean res = listModel.toString().equals(lazyModel.toString());
+
+        String generatedText = lazyModel.generate("The", 2000);
+        HashMap<String, List> listMap = listModel.charDataMap();
+        for (int i = 3; i < generatedText.length() && res; i++) {
+            List probs = listMap.get(generatedText.substring(i - 3, i));
+            res = probs == null || probs.indexOf(generatedText.charAt(i)) >= 0;
+        }
+        // The mode cannot change once the model has windows
+        LanguageModel trained = new LanguageModel(2, 20, true);
+        trained.trainText("abcabd");
+        try {
+            trained.setLazyProbabilities(true);
+            res = false;
+        } catch (IllegalStateException e) {
+            // Expected
+        }
+        if (!res) {
+            System.out.println("LazyProbabilities Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the ModelStats class: the metrics must count the windows,
+    // the trained characters and the dead ends of the model, and must be
+    // readable through JMX.
+    public static boolean testMetrics() {
+        boolean res;
+        try {
+            LanguageModel model = new LanguageModel(2, 20);
+            ModelStats stats = new ModelStats(model);
+            model.setMetrics(stats);
+            stats.register("metricsTest");
+            // "e_" and "_m" have no followers, so after "commitee_" generation
+            // resets to "co" twice in every cycle of "mmitee_"
+            model.trainText("commitee_");
+            String generatedText = model.generate("co", 30);
+            long[] histogram = stats.getFollowerCountHistogram();
+            res = stats.getWindowsCreated() == 7 && stats.getWindowCount() == 7
+                    && histogram[0] == 7
+                    && stats.getTrainedChars() == 7
+                    && generatedText.equals("commitee_mmitee_mmitee_mmitee_")
+                    && stats.getDeadEndRecoveries() == 6
+                    && stats.getGenerateCalls() == 1 && stats.getGeneratedChars() == generatedText.length()
+                    && stats.getEstimatedHeapBytes() > 0
+                    && ManagementFactory.getPlatformMBeanServer()
+                            .getAttribute(ModelStats.objectName("metricsTest"), "WindowCount").equals(7);
+            ModelStats.unregister("metricsTest");
+            if (!res) {
+                System.out.println("Actual: " + stats);
+            }
+            // "a" compares 0, 1 and 1 followers to b, b and c, and "b" compares
+            // 0 and 1 followers to a and a
+            boolean [] compact = {false, true};
+            for (int i = 0; i < compact.length; i++) {
+                LanguageModel scanned = new LanguageModel(1, 20, compact[i]);
+                ModelStats scannedStats = new ModelStats(scanned);
+                scanned.setMetrics(scannedStats);
+                scanned.trainText("ababac");
+                res = res && scannedStats.getMeanScanDepth() == 0.6;
+            }
+            // The structure of the model may be read while the model is trained
+            LanguageModel trained = new LanguageModel(7, 20);
+            ModelStats trainedStats = new ModelStats(trained);
+            trained.setMetrics(trainedStats);
+            AtomicBoolean done = new AtomicBoolean();
+            AtomicBoolean failed = new AtomicBoolean();
+            Thread poller = new Thread(() -> {
+                try {
+                    while (!done.get()) {
+                        trainedStats.getFollowerCountHistogram();
+                        trainedStats.getEstimatedHeapBytes();
+                    }
+                } catch (RuntimeException e) {
+                    failed.set(true);
+                }
+            });
+            poller.start();
+            trained.train("originofspecies.txt");
+            done.set(true);
+            poller.join();
+            res = res && !failed.get()
+                    && trainedStats.getEstimatedHeapBytes() == trained.estimateHeapSize()
+                    && Arrays.equals(trainedStats.getFollowerCountHistogram(),
+                            trained.followerCountHistogram());
+            // The events keep the histogram up to date in every way of training
+            File file = File.createTempFile("metrics", ".bin");
+            file.deleteOnExit();
+            trained.save(file.getPath());
+            for (int i = 0; i < 3; i++) {
+                LanguageModel model2 = new LanguageModel(7, 20, i == 1);
+                ModelStats stats2 = new ModelStats(model2);
+                model2.setMetrics(stats2);
+                if (i == 2) {
+                    model2.load(file.getPath());
+                } else {
+                    model2.trainParallel("originofspecies.txt", 4);
+                }
+                model2.trainText("Natural selection");
+                res = res && Arrays.equals(stats2.getFollowerCountHistogram(), model2.followerCountHistogram());
+            }
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("Metrics Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the generateBatch() method: the text of each request must
+    // be the text that a model with the seed of the request generates, and must
+    // not depend on the other requests of the batch.
+    public static boolean testGenerateBatch() {
+        LanguageModel model = new LanguageModel(3, 20);
+        model.train("originofspecies.txt");
+        GenerationRequest [] requests = {new GenerationRequest("Nat", 300, 20),
+                new GenerationRequest("The", 50, 7), new GenerationRequest("It", 10, 7),
+                new GenerationRequest("Nat", 300, 21)};
+        String [] texts = model.generateBatch(requests);
+        boolean res = texts.length == requests.length;
+        for (int i = 0; i < requests.length && res; i++) {
+            LanguageModel seeded = new LanguageModel(3, (int) requests[i].seed);
+            seeded.train("originofspecies.txt");
+            String expected = seeded.generate(requests[i].initialText, requests[i].textLength);
+            String alone = model.generateBatch(new GenerationRequest [] {requests[i]})[0];
+            res = expected.equals(texts[i]) && expected.equals(alone);
+            if (!res) {
+                System.out.println("Expected: " + expected);
+                System.out.println("Actual: " + texts[i]);
+            }
+        }
+        return res;
+    }
+
+    // Test method for the GenerationServer class: texts generated over
+    // concurrent connections must be the texts of the same requests when
+    // generated directly, and malformed requests must get errors.
+    public static boolean testGenerationServer() {
+        boolean res = true;
+        LanguageModel model = new LanguageModel(3, 20);
+        model.train("originofspecies.txt");
+        GenerationServer server = new GenerationServer(model);
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress())) {
+            Thread acceptor = new Thread(() -> server.serve(serverSocket));
+            acceptor.start();
+            GenerationClient first = new GenerationClient(serverSocket.getLocalPort());
+            GenerationClient second = new GenerationClient(serverSocket.getLocalPort());
+            for (int seed = 0; seed < 10 && res; seed++) {
+                GenerationClient client = seed % 2 == 0 ? first : second;
+                String expected = model.generate(new GenerationRequest("The origin", 200, seed));
+                res = expected.equals(client.generate("The origin", 200, seed));
+            }
+            res = res && server.respond("200 x Nat").startsWith("ERR")
+                    && server.respond("200").startsWith("ERR");
+            first.close();
+            // Closing the server closes the connections that are still open
+            server.close();
+            acceptor.join();
+            try {
+                second.generate("The origin", 200, 0);
+                res = false;
+            } catch (IOException e) {
+                // Expected
+            }
+            second.close();
+        } catch (Exception e) {
+            res = false;
+        }
+        // A connection that could not be accepted does not stop the server
+        GenerationServer retrying = new GenerationServer(model);
+        try (ServerSocket serverSocket = new ServerSocket(0, 50, InetAddress.getLoopbackAddress()) {
+                    private boolean failed;
+
+                    public Socket accept() throws IOException {
+                        if (!failed) {
+                            failed = true;
+                            throw new IOException("Software caused connection abort");
+                        }
+                        return super.accept();
+                    }
+                }) {
+            Thread acceptor = new Thread(() -> retrying.serve(serverSocket));
+            acceptor.start();
+            GenerationClient client = new GenerationClient(serverSocket.getLocalPort());
+            String expected = model.generate(new GenerationRequest("The origin", 200, 1));
+            res = res && expected.equals(client.generate("The origin", 200, 1));
+            client.close();
+            retrying.close();
+            acceptor.join();
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("GenerationServer Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the randomStream() method: texts generated by threads
+    // at the same time, each with its own stream, must be the texts that the
+    // same streams generate one after the other, in a model with the same seed.
+    public static boolean testRandomStream() {
+        LanguageModel model = new LanguageModel(3, 20, true);
+        model.train("originofspecies.txt");
+        LanguageModel sameSeed = new LanguageModel(3, 20, true);
+        sameSeed.train("originofspecies.txt");
+        String [] texts = new String[4];
+        Thread [] threads = new Thread[texts.length];
+        for (int i = 0; i < threads.length; i++) {
+            int stream = i;
+            threads[i] = new Thread(() -> texts[stream] = model.generate("Nat", 2000, model.randomStream(stream)));
+            threads[i].start();
+        }
+        boolean res = true;
+        try {
+            for (int i = 0; i < threads.length; i++) {
+                threads[i].join();
+            }
+        } catch (InterruptedException e) {
+            res = false;
+        }
+        for (int i = 0; i < texts.length && res; i++) {
+            res = texts[i].equals(sameSeed.generate("Nat", 2000, sameSeed.randomStream(i)))
+                    && !texts[i].equals(texts[(i + 1) % texts.length]);
+        }
+        if (!res) {
+            System.out.println("RandomStream Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the BackoffLanguageModel class: the windows of each order
+    // must have the same followers as in a LanguageModel of that window length,
+    // and generation must continue past windows that have no followers, from
+    // the longest tail of the text that has followers.
+    public static boolean testBackoff() {
+        BackoffLanguageModel backoff = new BackoffLanguageModel(3, 20);
+        backoff.train("originofspecies.txt");
+        boolean res = true;
+        for (int order = 1; order <= 3 && res; order++) {
+            LanguageModel model = new LanguageModel(order, 20);
+            model.train("originofspecies.txt");
+            res = backoff.getWindowCount(order) == model.getWindowCount();
+            for (Map.Entry<String, List> entry : model.charDataMap().entrySet()) {
+                String window = entry.getKey();
+                if (!res) {
+                    break;
+                }
+                res = entry.getValue().toString().equals(backoff.getFollowers(window).toString());
+            }
+        }
+
+        // "e_" and "_" have no followers, so after "commitee_" the text continues
+        // from a character drawn by its count
+        BackoffLanguageModel small = new BackoffLanguageModel(2, 20);
+        small.trainText("commitee_");
+        String generatedText = small.generate("c", 50);
+        res = res && generatedText.length() == 50 && generatedText.startsWith("commitee_");
+        for (int i = 1; i < generatedText.length() && res; i++) {
+            String tail = generatedText.substring(Math.max(i - 2, 0), i);
+            while (small.getFollowers(tail) == null) {
+                tail = tail.substring(1);
+            }
+            res = small.getFollowers(tail).indexOf(generatedText.charAt(i)) >= 0;
+        }
+        if (!res) {
+            System.out.println("Backoff Test failed");
+            System.out.println("Actual: " + generatedText);
+        }
+        return res;
+    }
+
+    // Test method for the edges of the orders of a BackoffLanguageModel: order 0
+    // counts the characters, windows longer than the model have no followers,
+    // and an order out of range is rejected.
+    public static boolean testBackoffEdges() {
+        BackoffLanguageModel backoff = new BackoffLanguageModel(2, 20);
+        backoff.trainText("abcab");
+        boolean res = backoff.getWindowCount(0) == 3 && backoff.getWindowCount(2) == 3
+                && backoff.getFollowers("abc") == null
+                && backoff.getFollowers("").getSize() == 3;
+        int [] orders = {-1, 3};
+        for (int i = 0; i < orders.length && res; i++) {
+            try {
+                backoff.getWindowCount(orders[i]);
+                res = false;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+        }
+        if (!res) {
+            System.out.println("BackoffEdges Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the SuffixAutomatonModel class: a single automaton must
+    // count the same followers as LanguageModels of all window lengths, and
+    // generation must back off from windows that have no followers.
+    public static boolean testSuffixAutomaton() {
+        SuffixAutomatonModel automaton = new SuffixAutomatonModel(7, 20);
+        automaton.train("originofspecies.txt");
+        boolean res = true;
+        int [] windowLengths = {1, 3, 7, 12};
+        for (int i = 0; i < windowLengths.length && res; i++) {
+            LanguageModel model = new LanguageModel(windowLengths[i], 20);
+            model.train("originofspecies.txt");
+            for (Map.Entry<String, List> entry : model.charDataMap().entrySet()) {
+                String window = entry.getKey();
+                FollowerTable followers = automaton.getFollowers(window);
+                CharData [] expected = entry.getValue().toArray();
+                res = followers != null && followers.getSize() == expected.length;
+                for (int j = 0; j < expected.length && res; j++) {
+                    int index = followers.indexOf(expected[j].chr);
+                    res = index >= 0 && followers.countAt(index) == expected[j].count;
+                }
+                if (!res) {
+                    System.out.println("Expected: " + window + " : " + entry.getValue());
+                    System.out.println("Actual: " + window + " : " + followers);
+                    break;
+                }
+            }
+        }
+
+        // "e_" and "_" have no followers, so after "commitee_" the text
+        // continues from the followers of the empty window: all the characters
+        SuffixAutomatonModel small = new SuffixAutomatonModel(2, 20);
+        small.trainText("commitee_");
+        String generatedText = small.generate("co", 50);
+        res = res && generatedText.length() == 50 && generatedText.startsWith("commitee_");
+        if (!res) {
+            System.out.println("SuffixAutomaton Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the OffHeapLanguageModel class:
+    // an off-heap model must hold the same windows and followers as a
+    // LanguageModel, generate the same texts (also through dead ends),
+    // and refuse to be used after it is closed.
+    public static boolean testOffHeap() {
+        boolean res = true;
+        int [] windowLengths = {3, 7};
+        // The small segments split each region of the model into many buffers
+        int [] segmentSizes = {1 << 30, 4096};
+        for (int i = 0; i < windowLengths.length && res; i++) {
+            for (int j = 0; j < segmentSizes.length && res; j++) {
+                LanguageModel model = new LanguageModel(windowLengths[i], 20);
+                model.train("originofspecies.txt");
+                try (OffHeapLanguageModel offHeap = new OffHeapLanguageModel(windowLengths[i], 20, segmentSizes[j])) {
+                    offHeap.train("originofspecies.txt");
+                    res = offHeap.getWindowCount() == model.getWindowCount()
+                            && offHeap.toString().equals(model.toString());
+                    String initialText = "Natural".substring(0, windowLengths[i]);
+                    String expected = model.generate(initialText, 1000);
+                    String actual = offHeap.generate(initialText, 1000);
+                    res = res && expected.equals(actual);
+                    if (!res) {
+                        System.out.println("Expected: " + expected);
+                        System.out.println("Actual: " + actual);
+                    }
+                }
+            }
+        }
+
+        // The windows of this text make a HashMap resize (see testCompactModel)
+        LanguageModel collisionModel = new LanguageModel(1, 20);
+        collisionModel.trainText("0@P`p \u00e0\u00f0\u00c0\u00d0\u00b0 x");
+        try (OffHeapLanguageModel offHeap = new OffHeapLanguageModel(1, 20)) {
+            offHeap.trainText("0@P`p \u00e0\u00f0\u00c0\u00d0\u00b0 x");
+            res = res && offHeap.toString().equals(collisionModel.toString())
+                    && offHeap.generate("z", 2).equals("zP");
+        }
+
+        // "e_" has no followers, so generation resets to "co"; "zz" was never
+        // seen, so generation falls back to the first window of the model
+        String [] initialTexts = {"co", "zz"};
+        for (int i = 0; i < initialTexts.length && res; i++) {
+            LanguageModel model = new LanguageModel(2, 20);
+            model.trainText("commitee_");
+            OffHeapLanguageModel offHeap = new OffHeapLanguageModel(2, 20);
+            offHeap.trainText("commitee_");
+            String expected = model.generate(initialTexts[i], 50);
+            String actual = offHeap.generate(initialTexts[i], 50);
+            res = expected.equals(actual);
+            if (!res) {
+                System.out.println("Expected: " + expected);
+                System.out.println("Actual: " + actual);
+            }
+            offHeap.close();
+            // Closing twice does nothing, but using a closed model fails
+            offHeap.close();
+            try {
+                offHeap.generate(initialTexts[i], 50);
+                res = false;
+            } catch (IllegalStateException e) {
+                // Expected
+            }
+        }
+        if (!res) {
+            System.out.println("OffHeap Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the ByteLanguageModel class:
+    // a byte model must count the same followers as a LanguageModel, both for
+    // an ASCII corpus and for a UTF-8 corpus with Latin-1 characters, in dense
+    // and in sparse windows, and must refuse a text with other characters.
+    public static boolean testByteModel() {
+        boolean res = true;
+        String [] fileNames = {"shakespeareinlove.txt", "originofspecies.txt"};
+        for (int i = 0; i < fileNames.length && res; i++) {
+            LanguageModel model = new LanguageModel(3, 20);
+            model.train(fileNames[i]);
+            ByteLanguageModel bytes = new ByteLanguageModel(3, 20);
+            bytes.train(fileNames[i]);
+            res = bytes.getWindowCount() == model.getWindowCount();
+            for (Map.Entry<String, List> entry : model.charDataMap().entrySet()) {
+                String window = entry.getKey();
+                CharData [] expected = entry.getValue().toArray();
+                for (int j = 0; j < expected.length && res; j++) {
+                    res = bytes.getCount(window, expected[j].chr) == expected[j].count;
+                }
+                if (!res) {
+                    System.out.println("Expected: " + window + " : " + entry.getValue());
+                    break;
+                }
+            }
+            String generatedText = bytes.generate("Nat", 200);
+            res = res && generatedText.length() == 200 && generatedText.startsWith("Nat");
+            // Both kinds of followers are used: dense for the hottest windows
+            int dense = bytes.getDenseWindowCount();
+            res = res && dense > 0 && dense < bytes.getWindowCount();
+        }
+
+        // "e_" has no followers, so generation continues from a follower of "co"
+        ByteLanguageModel small = new ByteLanguageModel(2, 20);
+        small.trainBytes("commitee_".getBytes());
+        res = res && small.generate("co", 50).startsWith("commitee_mmitee_");
+        try {
+            File corpus = File.createTempFile("greek", ".txt");
+            corpus.deleteOnExit();
+            BufferedWriter bw = new BufferedWriter(new FileWriter(corpus, StandardCharsets.UTF_8));
+            bw.write("\u03ba\u03cc\u03c3\u03bc\u03b5");
+            bw.close();
+            res = res && ByteLanguageModel.readLatin1(corpus.getPath()) == null;
+            try {
+                new ByteLanguageModel(2, 20).train(corpus.getPath());
+                res = false;
+            } catch (IllegalArgumentException e) {
+                // Expected
+            }
+            // A file that is not UTF-8 is read as ISO-8859-1
+            File latin1 = File.createTempFile("latin1", ".txt");
+            latin1.deleteOnExit();
+            Files.write(latin1.toPath(), "caf\u00e9\r\ncaf\u00e9".getBytes(StandardCharsets.ISO_8859_1));
+            ByteLanguageModel cafe = new ByteLanguageModel(3, 20);
+            cafe.train(latin1.getPath());
+            res = res && cafe.getCount("caf", '\u00e9') == 2 && cafe.getCount("af\u00e9", '\n') == 1;
+        } catch (Exception e) {
+            res = false;
+        }
+        if (!res) {
+            System.out.println("ByteModel Test failed");
+        }
+        return res;
+    }
+
+    // Test method for the MappedModel class:
+    // a mapped model must generate the same text as the trained model,
+    // also when generation runs into dead ends.
+    public static boolean testMappedModel() {
+        boolean result = true;
+        try {
+            File corpus = File.createTempFile("commitee", ".txt");
+            corpus.deleteOnExit();
+            BufferedWriter bw = new BufferedWriter(new FileWriter(corpus));
+            bw.write("commitee_");
+            bw.close();
+            result = testMappedModel("originofspecies.txt", 3, "Nat");
+            // "e_" has no followers, so generation keeps resetting to "co"
+            result = testMappedModel(corpus.getPath(), 2, "co") && result;
+            // A truncated or corrupt file is rejected when it is opened
+            File file = File.createTempFile("model", ".map");
+            file.deleteOnExit();
+            LanguageModel trained = new LanguageModel(3, 20);
+            trained.train("originofspecies.txt");
+            trained.saveMapped(file.getPath());
+            byte[] bytes = Files.readAllBytes(file.toPath());
+            byte[] corruptWindowCount = bytes.clone();
+            corruptWindowCount[12] = (byte) 0x7F;
+            byte[] corruptFallback = bytes.clone();
+            Arrays.fill(corruptFallback, 20, 24, (byte) 0x7F);
+            byte[][] corrupt = {Arrays.copyOf(bytes, 100), corruptWindowCount, corruptFallback};
+            for (int i = 0; i < corrupt.length; i++) {
+                Files.write(file.toPath(), corrupt[i]);
+                try {
+                    new MappedModel(file.getPath(), 20);
+                    result = false;
+                } catch (IllegalArgumentException e) {
+                    // Expected
+                }
+            }
+        } catch (Exception e) {
+            result = false;
+        }
+        if (!result) {
+            System.out.println("MappedModel Test failed");
+        }
+        return result;
+    }
+
+    private static boolean testMappedModel(String fileName, int windowLength, String initialText)
+            throws Exception {
+        boolean res = true;
+        // Both kinds of models with the default sampling, which the mapped model uses
+        boolean [] compact = {false, true};
+        for (int i = 0; i < compact.length && res; i++) {
+            File file = File.createTempFile("model", ".map");
+            file.deleteOnExit();
+            LanguageModel trained = new LanguageModel(windowLength, 20, compact[i]);
+            trained.train(fileName);
+            trained.saveMapped(file.getPath());
+            MappedModel mapped = new MappedModel(file.getPath(), 20);
+            String expected = trained.generate(initialText, 500);
+            String actual = mapped.generate(initialText, 500);
+            res = expected.equals(actual);
+            if (!res) {
+                System.out.println("Expected: " + expected);
+                System.out.println("Actual: " + actual);
+            }
+        }
+        return res;
+    }
+
     private static boolean stringEqualsNoSpaces(String s1, String s2) {
         s1 = s1.replaceAll("\\s+", "");
         s2 = s2.replaceAll("\\s+", "");
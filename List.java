@@ -16,6 +16,10 @@ public class List {
     // The number of elements in this list
     private int size;
 
+    // True if the counters of this list changed since its probabilities
+    // were last computed
+    private boolean dirty;
+
     /** Constructs an empty list. */
     public List() {
         first = null;
@@ -27,6 +31,19 @@ public class List {
         return size;
     }
 
+    /**
+     * Checks if the counters of this list changed since its probabilities
+     * were last computed (see markClean).
+     */
+    public boolean isDirty() {
+        return dirty;
+    }
+
+    /** Marks that the probabilities of this list were computed. */
+    public void markClean() {
+        dirty = false;
+    }
+
     /** Returns the CharData of the first element in this list. */
     public CharData getFirst() {
         if (first == null) {
@@ -44,6 +61,7 @@ public class List {
         n.next = this.first;
         this.first = n;
         this.size++;
+        this.dirty = true;
     }
 
     /** GIVE Textual representation of this list. */
@@ -84,17 +102,35 @@ public class List {
      * If the given character exists in one of the CharData objects in this list,
      * increments its counter. Otherwise, adds a new CharData object with the
      * given chr to the beginning of this list.
+     * Returns the number of CharData objects that were compared (see add).
      */
-    public void update(char chr) {
-        if (indexOf(chr) == -1) {
-            this.addFirst(chr);
-        } else {
-            Node n = this.first;
-            for (int i = 0; i < indexOf(chr); i++) {
-                n = n.next;
+    public int update(char chr) {
+        return add(chr, 1);
+    }
+
+    /**
+     * If the given character exists in one of the CharData objects in this list,
+     * adds the given count to its counter. Otherwise, adds a new CharData object
+     * with the given chr and count to the beginning of this list.
+     * Returns the number of CharData objects that were compared to the given
+     * character: its index plus 1 if it was found, or the previous size of
+     * this list if it was added.
+     */
+    public int add(char chr, int count) {
+        Node n = this.first;
+        int depth = 0;
+        while (n != null) {
+            depth++;
+            if (n.cp.chr == chr) {
+                n.cp.count += count;
+                this.dirty = true;
+                return depth;
             }
-            n.cp.count++;
+            n = n.next;
         }
+        this.addFirst(chr);
+        this.first.cp.count = count;
+        return depth;
     }
 
     /**
@@ -106,6 +142,7 @@ public class List {
         if (indexOf(chr) == -1) {
             return false;
         }
+        this.dirty = true;
         if (indexOf(chr) == 0) {
             this.first = this.first.next;
             this.size--;
@@ -152,6 +189,14 @@ public class List {
         return arr;
     }
 
+    /**
+     * Returns an estimate of the number of bytes that this list takes on the
+     * heap: the list object, and a Node and a CharData object per element.
+     */
+    public long heapSize() {
+        return 24 + (long) size * (24 + 40);
+    }
+
     /**
      * Returns an iterator over the elements in this list, starting at the given
      * index.
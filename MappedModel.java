@@ -0,0 +1,311 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A read-only language model that generates texts directly from a model file
+ * that is mapped into memory. Opening the model does not build any objects
+ * for the windows and their followers, so it takes milliseconds regardless of
+ * the size of the model, and all the processes that map the same file share
+ * a single copy of it in the page cache.
+ * The model file is written from a trained LanguageModel by write(), and is
+ * laid out as follows (all numbers are big-endian):
+ *   header     6 ints: magic ("LMAP"), version, windowLength, window count W,
+ *              follower count F, and the index of the fallback window (or -1)
+ *   windows    W windows of windowLength chars each, in increasing order
+ *   offsets    W + 1 ints: the followers of window i are followers
+ *              offsets[i] .. offsets[i + 1] - 1
+ *   totals     W ints: the sum of the counts of the followers of each window
+ *   chars      F chars: the character of each follower
+ *   counts     F ints: the count of each follower
+ * The followers of each window are kept in the same order as in the trained
+ * model, and the fallback window is the first window of the trained model's
+ * map. A mapped model always draws by cumulative probabilities, so for a model
+ * that samples that way (the default), it generates exactly the same texts as
+ * the trained model, for the same seed. A model with alias sampling or lazy
+ * probabilities consumes the random numbers differently: its mapped model
+ * draws from the same distributions, but generates different texts.
+ * Since a single mapping is limited to 2 GB, so are model files: write refuses
+ * a larger model. Opening a file checks its header and the sizes of its
+ * sections; the offsets of each window are checked when it is drawn from.
+ */
+public class MappedModel {
+
+    // The first 4 bytes of a mapped model file: "LMAP"
+    private static final int MAGIC = 0x4C4D4150;
+
+    // The version of the format
+    private static final int VERSION = 1;
+
+    // The size of the header, in bytes
+    private static final int HEADER_SIZE = 6 * 4;
+
+    // The mapped model file
+    private final MappedByteBuffer buffer;
+
+    // The window length used in this model.
+    private final int windowLength;
+
+    // The number of windows and followers, and the index of the fallback window
+    private final int windowCount;
+    private final int followerCount;
+    private final int fallbackWindow;
+
+    // The byte offsets of the sections of the model file
+    private final int windowsOffset;
+    private final int offsetsOffset;
+    private final int totalsOffset;
+    private final int charsOffset;
+    private final int countsOffset;
+
+    // The random number generator used by this model.
+    private final Random randomGenerator;
+
+    /**
+     * Opens the given model file, with the given seed value. Generating texts
+     * from this model with the same seed value as a trained model with the
+     * default sampling will produce the same random texts.
+     */
+    public MappedModel(String fileName, int seed) {
+        try (FileChannel channel = FileChannel.open(Paths.get(fileName), StandardOpenOption.READ)) {
+            if (channel.size() > Integer.MAX_VALUE) {
+                throw new IllegalArgumentException(fileName + " is larger than 2 GB");
+            }
+            // The mapping stays valid after the channel is closed
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not read " + fileName, e);
+        }
+        if (buffer.capacity() < HEADER_SIZE || buffer.getInt(0) != MAGIC) {
+            throw new IllegalArgumentException(fileName + " is not a mapped model file");
+        }
+        if (buffer.getInt(4) != VERSION) {
+            throw new IllegalArgumentException("Unsupported mapped model version: " + buffer.getInt(4));
+        }
+        windowLength = buffer.getInt(8);
+        windowCount = buffer.getInt(12);
+        followerCount = buffer.getInt(16);
+        fallbackWindow = buffer.getInt(20);
+        // A model has a fallback window if and only if it has windows
+        boolean validFallback = windowCount == 0
+                ? fallbackWindow == -1
+                : fallbackWindow >= 0 && fallbackWindow < windowCount;
+        if (windowLength < 0 || windowCount < 0 || followerCount < 0 || !validFallback) {
+            throw new IllegalArgumentException(fileName + " has a corrupt header");
+        }
+        // The sections end at the end of the file. Computed in long, so that
+        // corrupt counts cannot overflow.
+        long offsetsEnd = HEADER_SIZE + 2L * windowLength * windowCount;
+        long totalsEnd = offsetsEnd + 4L * (windowCount + 1);
+        long charsEnd = totalsEnd + 4L * windowCount;
+        long countsEnd = charsEnd + 2L * followerCount;
+        if (countsEnd + 4L * followerCount != buffer.capacity()) {
+            throw new IllegalArgumentException(fileName + " is truncated or corrupt");
+        }
+        windowsOffset = HEADER_SIZE;
+        offsetsOffset = (int) offsetsEnd;
+        totalsOffset = (int) totalsEnd;
+        charsOffset = (int) charsEnd;
+        countsOffset = (int) countsEnd;
+        if (buffer.getInt(offsetsOffset) != 0 || buffer.getInt(totalsOffset - 4) != followerCount) {
+            throw new IllegalArgumentException(fileName + " is truncated or corrupt");
+        }
+        randomGenerator = new Random(seed);
+    }
+
+    /** Writes the given trained model to the given file, in the mapped model format. */
+    public static void write(LanguageModel model, String fileName) {
+        WindowIndex<?> index = model.isCompact() ? model.tableIndex : model.listIndex;
+        String[] windows = new String[index.size()];
+        for (int entry = 0; entry < windows.length; entry++) {
+            windows[entry] = index.keyAt(entry);
+        }
+        String fallback = model.fallbackWindow();
+        Arrays.sort(windows);
+
+        // Collects the followers of all the windows, in the order of the windows
+        int[] offsets = new int[windows.length + 1];
+        int[] totals = new int[windows.length];
+        long allFollowers = 0;
+        for (int i = 0; i < windows.length; i++) {
+            offsets[i] = (int) allFollowers;
+            allFollowers += followersOf(model, windows[i]).length;
+        }
+        // A file that is larger than a single mapping could not be opened
+        long fileSize = HEADER_SIZE + 2L * model.windowLength * windows.length
+                + 4L * (windows.length + 1) + 4L * windows.length + 6L * allFollowers;
+        if (fileSize > Integer.MAX_VALUE) {
+            throw new IllegalArgumentException("The model is too large for a mapped model file: "
+                    + fileSize + " bytes");
+        }
+        int followerCount = (int) allFollowers;
+        offsets[windows.length] = followerCount;
+        char[] chars = new char[followerCount];
+        int[] counts = new int[followerCount];
+        for (int i = 0; i < windows.length; i++) {
+            CharData[] followers = followersOf(model, windows[i]);
+            for (int j = 0; j < followers.length; j++) {
+                chars[offsets[i] + j] = followers[j].chr;
+                counts[offsets[i] + j] = followers[j].count;
+                totals[i] += followers[j].count;
+            }
+        }
+
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(model.windowLength);
+            out.writeInt(windows.length);
+            out.writeInt(followerCount);
+            out.writeInt(fallback == null ? -1 : Arrays.binarySearch(windows, fallback));
+            for (String window : windows) {
+                out.writeChars(window);
+            }
+            for (int offset : offsets) {
+                out.writeInt(offset);
+            }
+            for (int total : totals) {
+                out.writeInt(total);
+            }
+            for (char chr : chars) {
+                out.writeChar(chr);
+            }
+            for (int count : counts) {
+                out.writeInt(count);
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write " + fileName, e);
+        }
+    }
+
+    // Returns the followers of the given window of the given model.
+    private static CharData[] followersOf(LanguageModel model, String window) {
+        if (model.isCompact()) {
+            return model.tableIndex.get(window).toArray();
+        }
+        return model.listIndex.get(window).toArray();
+    }
+
+    /** Returns the window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /**
+     * Returns the index of the window that starts at the given position of the
+     * text, or -1 if the window is not in this model. Uses binary search over
+     * the sorted windows of the model file.
+     */
+    public int indexOf(CharSequence text, int start) {
+        int lo = 0;
+        int hi = windowCount - 1;
+        while (lo <= hi) {
+            int mid = (lo + hi) >>> 1;
+            int cmp = compareWindow(mid, text, start);
+            if (cmp < 0) {
+                lo = mid + 1;
+            } else if (cmp > 0) {
+                hi = mid - 1;
+            } else {
+                return mid;
+            }
+        }
+        return -1;
+    }
+
+    // Compares the window with the given index to the window that starts at
+    // the given position of the text.
+    private int compareWindow(int index, CharSequence text, int start) {
+        int offset = windowsOffset + 2 * windowLength * index;
+        for (int i = 0; i < windowLength; i++) {
+            char c = buffer.getChar(offset + 2 * i);
+            char t = text.charAt(start + i);
+            if (c != t) {
+                return c - t;
+            }
+        }
+        return 0;
+    }
+
+    /**
+     * Returns a random follower of the window with the given index.
+     * Computes the cumulative probabilities on the fly, with the same arithmetic
+     * as LanguageModel.calculateProbabilities, and returns the first follower
+     * whose cumulative probability is greater than a random number.
+     */
+    public char getRandomChar(int window) {
+        double r = randomGenerator.nextDouble();
+        int from = buffer.getInt(offsetsOffset + 4 * window);
+        int to = buffer.getInt(offsetsOffset + 4 * (window + 1));
+        int total = buffer.getInt(totalsOffset + 4 * window);
+        if (from < 0 || from >= to || to > followerCount || total <= 0) {
+            throw new IllegalArgumentException("Corrupt followers of window " + window);
+        }
+        double cumulativeProb = 0.0;
+        for (int i = from; i < to; i++) {
+            cumulativeProb += (double) buffer.getInt(countsOffset + 4 * i) / total;
+            if (cumulativeProb > r) {
+                return buffer.getChar(charsOffset + 2 * i);
+            }
+        }
+        // Fallback for rounding errors (returns the last char)
+        return buffer.getChar(charsOffset + 2 * (to - 1));
+    }
+
+    /**
+     * Generates a random text, based on the probabilities in the model file.
+     * Behaves exactly like LanguageModel.generate with the default sampling.
+     */
+    public String generate(String initialText, int textLength) {
+        // The model has no windows, or the initial text is too short
+        if (windowCount == 0 || initialText.length() < windowLength) {
+            return initialText;
+        }
+
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+        while (generatedText.length() < textLength) {
+            int window = indexOf(generatedText, generatedText.length() - windowLength);
+            // Dead end: resets to the initial seed, or to the fallback window
+            if (window < 0) {
+                window = indexOf(initialText, 0);
+            }
+            if (window < 0) {
+                window = fallbackWindow;
+            }
+            generatedText.append(getRandomChar(window));
+        }
+        return generatedText.toString();
+    }
+
+    /** Returns a string representing the windows and followers of this model. */
+    public String toString() {
+        StringBuilder str = new StringBuilder();
+        for (int w = 0; w < windowCount; w++) {
+            int offset = windowsOffset + 2 * windowLength * w;
+            for (int i = 0; i < windowLength; i++) {
+                str.append(buffer.getChar(offset + 2 * i));
+            }
+            str.append(" : (");
+            int from = buffer.getInt(offsetsOffset + 4 * w);
+            int to = buffer.getInt(offsetsOffset + 4 * (w + 1));
+            for (int i = from; i < to; i++) {
+                str.append("(" + buffer.getChar(charsOffset + 2 * i) + " "
+                        + buffer.getInt(countsOffset + 4 * i) + ")");
+                if (i < to - 1) {
+                    str.append(" ");
+                }
+            }
+            str.append(")\n");
+        }
+        return str.toString();
+    }
+}
@@ -0,0 +1,41 @@
+/**
+ * Receives events from the hot paths of a LanguageModel, for monitoring.
+ * A model reports events only to the metrics that were set with
+ * LanguageModel.setMetrics; a model without metrics only checks a null field
+ * on each event, so monitoring costs nothing when it is disabled.
+ * The methods are called on the training and generating threads, and must
+ * return quickly. See ModelStats for an implementation that is exposed
+ * through JMX.
+ */
+public interface ModelMetrics {
+
+    /** Called when a new window is added to the model. */
+    void windowCreated();
+
+    /**
+     * Called when training counts a follower of a window by a linear scan of
+     * its followers. The depth is the number of followers that were compared
+     * until the follower was found, or before it was added as a new follower.
+     * Not called for followers that are looked up in the index of a large
+     * FollowerTable, which does not scan them.
+     */
+    void followerScanned(int depth);
+
+    /**
+     * Called when the number of followers of a window changes from the given
+     * number (0 for a new window) to the other number.
+     */
+    void followersChanged(int before, int after);
+
+    /**
+     * Called at the end of each training call, on the training thread, when
+     * training of the given number of characters took the given time.
+     */
+    void trained(long chars, long nanos);
+
+    /** Called when generating a text of the given length took the given time. */
+    void generated(int chars, long nanos);
+
+    /** Called when generation recovers from a window that has no followers. */
+    void deadEndRecovered();
+}
@@ -0,0 +1,276 @@
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.util.HashMap;
+
+/**
+ * Saves and loads trained language models, in a compact binary format.
+ * Only the counts are saved: the probabilities are computed again on loading,
+ * with the same arithmetic, so they come out identical.
+ * All the numbers are written as varints (7 bits per byte, the high bit marks
+ * that more bytes follow). All the characters, of both windows and followers,
+ * are written as indexes into a shared dictionary of the characters that the
+ * model uses, so a typical character takes a single byte.
+ * The windows that were already written form a shared window dictionary: a
+ * window that continues an earlier window (its first windowLength - 1
+ * characters are the last ones of the earlier window) is written as the
+ * distance back to that window and its last character, instead of all its
+ * characters. Most windows of a trained model continue an earlier one.
+ * The format (version 2) is:
+ *   magic            4 bytes, "LMOD"
+ *   version          1 byte
+ *   windowLength     varint
+ *   dictionary size  varint, followed by the characters, in increasing order, as varints
+ *   window count     varint
+ *   for each window, in the order in which it was added to the model:
+ *     distance       varint: 0 if the window is written in full, and otherwise
+ *                    the number of windows back to the window it continues
+ *     the window     windowLength dictionary indexes if written in full, and
+ *                    otherwise the dictionary index of its last character
+ *     follower count varint
+ *     for each follower, in the order in which it was first seen:
+ *       character    dictionary index
+ *       count        varint
+ * Since the windows are loaded in the order in which they were saved, the
+ * loaded model adds them in the same order as the saved one did. toString
+ * lists the windows in an order that depends only on that order, so it lists
+ * them in the same order for both models.
+ * A corrupt file is rejected with an IllegalArgumentException.
+ */
+public class ModelSnapshot {
+
+    // The first 4 bytes of a model file: "LMOD"
+    private static final int MAGIC = 0x4C4D4F44;
+
+    // The version of the format
+    private static final int VERSION = 2;
+
+    // The number of possible char values
+    private static final int CHAR_VALUES = 1 << 16;
+
+    /** Saves the given model to the given file. */
+    public static void save(LanguageModel model, String fileName) {
+        try (DataOutputStream out = new DataOutputStream(
+                new BufferedOutputStream(new FileOutputStream(fileName)))) {
+            out.writeInt(MAGIC);
+            out.writeByte(VERSION);
+            writeVarint(out, model.windowLength);
+
+            // Builds the dictionary of the characters used by the model
+            boolean[] used = new boolean[CHAR_VALUES];
+            int windows = 0;
+            WindowIndex<FollowerTable> tableIndex = model.tableIndex;
+            if (model.isCompact()) {
+                for (int entry = 0; entry < tableIndex.size(); entry++) {
+                    markUsed(used, tableIndex.keyAt(entry));
+                    FollowerTable table = tableIndex.valueAt(entry);
+                    for (int i = 0; i < table.getSize(); i++) {
+                        used[table.chrAt(i)] = true;
+                    }
+                    windows++;
+                }
+            } else {
+                for (int entry = 0; entry < model.listIndex.size(); entry++) {
+                    markUsed(used, model.listIndex.keyAt(entry));
+                    for (CharData cd : model.listIndex.valueAt(entry).toArray()) {
+                        used[cd.chr] = true;
+                    }
+                    windows++;
+                }
+            }
+            int[] indexOf = new int[CHAR_VALUES];
+            int size = 0;
+            for (int c = 0; c < CHAR_VALUES; c++) {
+                if (used[c]) {
+                    indexOf[c] = size++;
+                }
+            }
+            writeVarint(out, size);
+            for (int c = 0; c < CHAR_VALUES; c++) {
+                if (used[c]) {
+                    writeVarint(out, c);
+                }
+            }
+
+            writeVarint(out, windows);
+            // The position of the last window written so far that ends with
+            // each windowLength - 1 characters
+            HashMap<String, Integer> endings = new HashMap<String, Integer>();
+            int position = 0;
+            // In the order in which the windows were added, so a loaded
+            // model orders them in the same way
+            if (model.isCompact()) {
+                for (int entry = 0; entry < tableIndex.size(); entry++) {
+                    writeWindow(out, indexOf, tableIndex.keyAt(entry), position++, endings);
+                    FollowerTable table = tableIndex.valueAt(entry);
+                    writeVarint(out, table.getSize());
+                    for (int i = table.getSize() - 1; i >= 0; i--) {
+                        writeVarint(out, indexOf[table.chrAt(i)]);
+                        writeVarint(out, table.countAt(i));
+                    }
+                }
+            } else {
+                for (int entry = 0; entry < model.listIndex.size(); entry++) {
+                    writeWindow(out, indexOf, model.listIndex.keyAt(entry), position++, endings);
+                    CharData[] followers = model.listIndex.valueAt(entry).toArray();
+                    writeVarint(out, followers.length);
+                    for (int i = followers.length - 1; i >= 0; i--) {
+                        writeVarint(out, indexOf[followers[i].chr]);
+                        writeVarint(out, followers[i].count);
+                    }
+                }
+            }
+        } catch (IOException e) {
+            throw new IllegalArgumentException("Could not write " + fileName, e);
+        }
+    }
+
+    /**
+     * Loads the counts saved in the given file into the given model, which
+     * should be empty. Does not compute the probabilities.
+     */
+    public static void load(LanguageModel model, String fileName) {
+        try {
+            // The whole file is read at once, and decoded from memory
+            ByteBuffer in = ByteBuffer.wrap(Files.readAllBytes(Paths.get(fileName)));
+            if (in.getInt() != MAGIC) {
+                throw new IllegalArgumentException(fileName + " is not a model file");
+            }
+            int version = in.get() & 0xFF;
+            if (version != VERSION) {
+                throw new IllegalArgumentException("Unsupported model file version: " + version);
+            }
+            int windowLength = readVarint(in);
+            if (windowLength != model.windowLength) {
+                throw new IllegalArgumentException("The model in " + fileName
+                        + " has window length " + windowLength + ", not " + model.windowLength);
+            }
+
+            int dictionarySize = readVarint(in);
+            if (dictionarySize < 0 || dictionarySize > CHAR_VALUES) {
+                throw new IOException("Bad dictionary size: " + dictionarySize);
+            }
+            char[] dictionary = new char[dictionarySize];
+            for (int i = 0; i < dictionary.length; i++) {
+                dictionary[i] = (char) readVarint(in);
+            }
+
+            int windows = readVarint(in);
+            // Each window takes at least two bytes
+            if (windows < 0 || windows > in.remaining() / 2) {
+                throw new IOException("Bad window count: " + windows);
+            }
+            if ((long) windows * windowLength > Integer.MAX_VALUE) {
+                throw new IOException("Too many window characters: " + windows + " windows of " + windowLength);
+            }
+            model.ensureWindowCapacity(windows);
+            // The characters of all the windows loaded so far, one after the other
+            char[] loaded = new char[windows * windowLength];
+            // The followers of a window are distinct characters of the dictionary
+            char[] chrs = new char[dictionary.length];
+            int[] counts = new int[dictionary.length];
+            for (int w = 0; w < windows; w++) {
+                int start = w * windowLength;
+                int distance = readVarint(in);
+                if (distance == 0) {
+                    for (int i = 0; i < windowLength; i++) {
+                        loaded[start + i] = readChar(in, dictionary);
+                    }
+                } else {
+                    if (distance < 0 || distance > w || windowLength == 0) {
+                        throw new IOException("Bad window distance: " + distance);
+                    }
+                    System.arraycopy(loaded, start - distance * windowLength + 1, loaded, start, windowLength - 1);
+                    loaded[start + windowLength - 1] = readChar(in, dictionary);
+                }
+                String window = new String(loaded, start, windowLength);
+                int followers = readVarint(in);
+                // A window without followers could not be drawn from
+                if (followers < 1 || followers > dictionary.length) {
+                    throw new IOException("Bad follower count: " + followers);
+                }
+                // The counts are positive, and so is their total (as an int)
+                long total = 0;
+                for (int i = 0; i < followers; i++) {
+                    chrs[i] = readChar(in, dictionary);
+                    counts[i] = readVarint(in);
+                    if (counts[i] <= 0) {
+                        throw new IOException("Bad count of a follower: " + counts[i]);
+                    }
+                    total += counts[i];
+                }
+                if (total > Integer.MAX_VALUE) {
+                    throw new IOException("Bad total count of window " + w + ": " + total);
+                }
+                model.addCounts(window, chrs, counts, followers);
+            }
+        } catch (IOException | BufferUnderflowException e) {
+            throw new IllegalArgumentException("Could not read " + fileName, e);
+        }
+    }
+
+    // Marks the characters of the given window as used.
+    private static void markUsed(boolean[] used, String window) {
+        for (int i = 0; i < window.length(); i++) {
+            used[window.charAt(i)] = true;
+        }
+    }
+
+    // Writes the given window, which is written at the given position: as the
+    // distance back to an earlier window that it continues and its last
+    // character, or in full if there is no such window. Then records the
+    // position of the window as the last one with its ending.
+    private static void writeWindow(DataOutputStream out, int[] indexOf, String window,
+            int position, HashMap<String, Integer> endings) throws IOException {
+        int length = window.length();
+        Integer continued = length == 0 ? null : endings.get(window.substring(0, length - 1));
+        if (continued != null) {
+            writeVarint(out, position - continued);
+            writeVarint(out, indexOf[window.charAt(length - 1)]);
+        } else {
+            writeVarint(out, 0);
+            for (int i = 0; i < length; i++) {
+                writeVarint(out, indexOf[window.charAt(i)]);
+            }
+        }
+        if (length > 0) {
+            endings.put(window.substring(1), position);
+        }
+    }
+
+    // Reads a dictionary index, and returns its character.
+    private static char readChar(ByteBuffer in, char[] dictionary) throws IOException {
+        int index = readVarint(in);
+        if (index < 0 || index >= dictionary.length) {
+            throw new IOException("Bad dictionary index: " + index);
+        }
+        return dictionary[index];
+    }
+
+    // Writes the given non-negative number as a varint.
+    static void writeVarint(DataOutputStream out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    // Reads a varint.
+    static int readVarint(ByteBuffer in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.get();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Malformed varint");
+    }
+}
@@ -0,0 +1,301 @@
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.JMException;
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+/**
+ * Collects the metrics of a LanguageModel, and exposes them through JMX.
+ * The counters and timers are updated by the events that the model reports,
+ * and may be read by any thread at any time. The number of windows by their
+ * number of followers is computed from the model when the metrics are
+ * constructed (so they should be constructed while the model is not being
+ * trained), and then kept up to date by the events.
+ * The heap estimate walks the whole model, which is not safe while another
+ * thread trains it, so it is computed on the training thread, at the end of
+ * a training call. To keep it cheap, it is computed again only after 100
+ * times the duration of its last computation, so it takes at most 1% of the
+ * training time. It describes the model as of a recent training call.
+ * Usage:
+ *   ModelStats stats = new ModelStats(model);
+ *   model.setMetrics(stats);
+ *   stats.register("shakespeare");   // optional: visible in jconsole
+ */
+public class ModelStats implements ModelMetrics, ModelStatsMBean {
+
+    // The domain of the names of the registered MBeans
+    private static final String JMX_DOMAIN = "hw9";
+
+    // The model whose metrics are collected
+    private final LanguageModel model;
+
+    // The counters of the events of the model
+    private final LongAdder windowsCreated = new LongAdder();
+    private final LongAdder trainedChars = new LongAdder();
+    private final LongAdder trainingNanos = new LongAdder();
+    private final LongAdder generatedChars = new LongAdder();
+    private final LongAdder deadEndRecoveries = new LongAdder();
+
+    // The distributions of the scan depths and of the generate latencies (in nanoseconds)
+    private final Histogram scanDepths = new Histogram();
+    private final Histogram generateLatencies = new Histogram();
+
+    // The heap estimate is computed again only after this many times the
+    // duration of its last computation
+    private static final int ESTIMATE_INTERVAL_RATIO = 100;
+
+    // The number of windows by their number of followers (see getFollowerCountHistogram)
+    private final AtomicLongArray followerCounts;
+
+    // The heap estimate, when it was last computed (System.nanoTime), and how
+    // long computing it took
+    private volatile long estimatedHeapBytes;
+    private long estimateTime;
+    private long estimateNanos;
+
+    /** Constructs empty metrics for the given model. */
+    public ModelStats(LanguageModel model) {
+        this.model = model;
+        followerCounts = new AtomicLongArray(model.followerCountHistogram());
+        estimateHeapSize();
+    }
+
+    /**
+     * Registers these metrics with the platform MBean server, under the name
+     * hw9:type=LanguageModel,name=(the given name).
+     */
+    public void register(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.registerMBean(this, objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not register " + name, e);
+        }
+    }
+
+    /** Unregisters the metrics that were registered under the given name. */
+    public static void unregister(String name) {
+        MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+        try {
+            server.unregisterMBean(objectName(name));
+        } catch (JMException e) {
+            throw new IllegalStateException("Could not unregister " + name, e);
+        }
+    }
+
+    /** Returns the JMX name of the metrics that are registered under the given name. */
+    public static ObjectName objectName(String name) {
+        try {
+            return new ObjectName(JMX_DOMAIN + ":type=LanguageModel,name=" + ObjectName.quote(name));
+        } catch (JMException e) {
+            throw new IllegalArgumentException("Illegal name: " + name, e);
+        }
+    }
+
+    public void windowCreated() {
+        windowsCreated.increment();
+    }
+
+    public void followerScanned(int depth) {
+        scanDepths.record(depth);
+    }
+
+    public void trained(long chars, long nanos) {
+        trainedChars.add(chars);
+        trainingNanos.add(nanos);
+        if (System.nanoTime() - estimateTime >= ESTIMATE_INTERVAL_RATIO * estimateNanos) {
+            estimateHeapSize();
+        }
+    }
+
+    public void followersChanged(int before, int after) {
+        if (before > 0) {
+            followerCounts.decrementAndGet(31 - Integer.numberOfLeadingZeros(before));
+        }
+        followerCounts.incrementAndGet(31 - Integer.numberOfLeadingZeros(after));
+    }
+
+    public void generated(int chars, long nanos) {
+        generatedChars.add(chars);
+        generateLatencies.record(nanos);
+    }
+
+    public void deadEndRecovered() {
+        deadEndRecoveries.increment();
+    }
+
+    public int getWindowCount() {
+        return model.getWindowCount();
+    }
+
+    public long getWindowsCreated() {
+        return windowsCreated.sum();
+    }
+
+    public long[] getFollowerCountHistogram() {
+        long[] histogram = new long[followerCounts.length()];
+        for (int i = 0; i < histogram.length; i++) {
+            histogram[i] = followerCounts.get(i);
+        }
+        return histogram;
+    }
+
+    public long getEstimatedHeapBytes() {
+        return estimatedHeapBytes;
+    }
+
+    public double getMeanScanDepth() {
+        return scanDepths.mean();
+    }
+
+    public long getScanDepthP99() {
+        return scanDepths.percentile(0.99);
+    }
+
+    public long getTrainedChars() {
+        return trainedChars.sum();
+    }
+
+    public double getTrainingCharsPerSecond() {
+        long nanos = trainingNanos.sum();
+        return nanos == 0 ? 0 : trainedChars.sum() * 1e9 / nanos;
+    }
+
+    public long getGenerateCalls() {
+        return generateLatencies.count();
+    }
+
+    public long getGeneratedChars() {
+        return generatedChars.sum();
+    }
+
+    public double getGenerateLatencyP50Micros() {
+        return generateLatencies.percentile(0.5) / 1e3;
+    }
+
+    public double getGenerateLatencyP90Micros() {
+        return generateLatencies.percentile(0.9) / 1e3;
+    }
+
+    public double getGenerateLatencyP99Micros() {
+        return generateLatencies.percentile(0.99) / 1e3;
+    }
+
+    public double getGenerateLatencyP999Micros() {
+        return generateLatencies.percentile(0.999) / 1e3;
+    }
+
+    public long getDeadEndRecoveries() {
+        return deadEndRecoveries.sum();
+    }
+
+    public void reset() {
+        windowsCreated.reset();
+        trainedChars.reset();
+        trainingNanos.reset();
+        generatedChars.reset();
+        deadEndRecoveries.reset();
+        scanDepths.reset();
+        generateLatencies.reset();
+    }
+
+    // Computes the heap estimate. Must not run while another thread trains the model.
+    private void estimateHeapSize() {
+        long start = System.nanoTime();
+        estimatedHeapBytes = model.estimateHeapSize();
+        estimateTime = System.nanoTime();
+        estimateNanos = estimateTime - start;
+    }
+
+    /** Returns a textual summary of these metrics. */
+    public String toString() {
+        return "windows: " + getWindowCount()
+                + ", heap: " + getEstimatedHeapBytes() / 1024 + " KB"
+                + ", mean scan depth: " + String.format("%.2f", getMeanScanDepth())
+                + ", training: " + String.format("%.0f", getTrainingCharsPerSecond()) + " chars/s"
+                + ", generate p50/p99: " + String.format("%.1f/%.1f", getGenerateLatencyP50Micros(),
+                        getGenerateLatencyP99Micros()) + " us"
+                + ", dead ends: " + getDeadEndRecoveries();
+    }
+
+    // A histogram of non-negative values, with a relative error of at most 1/8.
+    // Values below 16 have a bucket each; larger values are bucketed by their
+    // highest bit and the 3 bits below it, so each power of two has 8 buckets.
+    private static class Histogram {
+
+        // The number of sub-buckets per power of two, and its log
+        private static final int SUB_BITS = 3;
+        private static final int SUB_BUCKETS = 1 << SUB_BITS;
+
+        // Values below this have a bucket each
+        private static final int EXACT = 2 * SUB_BUCKETS;
+
+        // The counts of the buckets
+        private final AtomicLongArray buckets = new AtomicLongArray(EXACT + (63 - SUB_BITS) * SUB_BUCKETS);
+
+        // The number and sum of the recorded values
+        private final LongAdder count = new LongAdder();
+        private final LongAdder sum = new LongAdder();
+
+        void record(long value) {
+            buckets.incrementAndGet(bucketOf(value));
+            count.increment();
+            sum.add(value);
+        }
+
+        long count() {
+            return count.sum();
+        }
+
+        double mean() {
+            long n = count.sum();
+            return n == 0 ? 0 : (double) sum.sum() / n;
+        }
+
+        // Returns the largest value of the bucket that holds the given
+        // fraction of the recorded values, or 0 if there are none.
+        long percentile(double fraction) {
+            long n = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                n += buckets.get(i);
+            }
+            long rank = (long) Math.ceil(fraction * n);
+            long seen = 0;
+            for (int i = 0; i < buckets.length(); i++) {
+                seen += buckets.get(i);
+                if (seen >= rank && seen > 0) {
+                    return maxValueOf(i);
+                }
+            }
+            return 0;
+        }
+
+        void reset() {
+            for (int i = 0; i < buckets.length(); i++) {
+                buckets.set(i, 0);
+            }
+            count.reset();
+            sum.reset();
+        }
+
+        private static int bucketOf(long value) {
+            if (value < EXACT) {
+                return (int) Math.max(value, 0);
+            }
+            int highBit = 63 - Long.numberOfLeadingZeros(value);
+            int shift = highBit - SUB_BITS;
+            int sub = (int) (value >>> shift) & (SUB_BUCKETS - 1);
+            return EXACT + (shift - 1) * SUB_BUCKETS + sub;
+        }
+
+        private static long maxValueOf(int bucket) {
+            if (bucket < EXACT) {
+                return bucket;
+            }
+            int shift = (bucket - EXACT) / SUB_BUCKETS + 1;
+            long sub = (bucket - EXACT) % SUB_BUCKETS;
+            return ((SUB_BUCKETS + sub + 1) << shift) - 1;
+        }
+    }
+}
@@ -0,0 +1,66 @@
+/**
+ * The JMX view of ModelStats. Each getter is an attribute of the registered
+ * MBean, and reset is an operation.
+ */
+public interface ModelStatsMBean {
+
+    /** Returns the number of windows in the model. */
+    int getWindowCount();
+
+    /** Returns the number of windows created since the last reset. */
+    long getWindowsCreated();
+
+    /**
+     * Returns the number of windows of the model by their number of followers:
+     * element i counts the windows with 2^i to 2^(i+1) - 1 followers.
+     */
+    long[] getFollowerCountHistogram();
+
+    /**
+     * Returns an estimate of the number of bytes that the model takes on the
+     * heap, as of a recent training call.
+     */
+    long getEstimatedHeapBytes();
+
+    /**
+     * Returns the average number of followers compared per trained character,
+     * over the characters that were counted by a linear scan.
+     */
+    double getMeanScanDepth();
+
+    /**
+     * Returns the 99th percentile of the number of followers compared per
+     * trained character, over the characters that were counted by a linear scan.
+     */
+    long getScanDepthP99();
+
+    /** Returns the number of characters trained since the last reset. */
+    long getTrainedChars();
+
+    /** Returns the training throughput since the last reset, in characters per second. */
+    double getTrainingCharsPerSecond();
+
+    /** Returns the number of generate calls since the last reset. */
+    long getGenerateCalls();
+
+    /** Returns the number of characters generated since the last reset. */
+    long getGeneratedChars();
+
+    /** Returns the median latency of generate calls, in microseconds. */
+    double getGenerateLatencyP50Micros();
+
+    /** Returns the 90th percentile latency of generate calls, in microseconds. */
+    double getGenerateLatencyP90Micros();
+
+    /** Returns the 99th percentile latency of generate calls, in microseconds. */
+    double getGenerateLatencyP99Micros();
+
+    /** Returns the 99.9th percentile latency of generate calls, in microseconds. */
+    double getGenerateLatencyP999Micros();
+
+    /** Returns the number of dead-end recoveries in generate since the last reset. */
+    long getDeadEndRecoveries();
+
+    /** Sets all the counters and timers to zero. */
+    void reset();
+}
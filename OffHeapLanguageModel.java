@@ -0,0 +1,560 @@
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Random;
+
+/**
+ * A language model that keeps its windows and followers outside the Java heap,
+ * in direct byte buffers, so the garbage collector never scans them: a model
+ * with millions of windows is a handful of objects on the heap, and GC pauses
+ * do not grow with the size of the model.
+ * Has the same train and generate API as LanguageModel, and generates exactly
+ * the same texts for the same seed: the followers of each window are kept in
+ * the same order as in a List, their probabilities are computed with the same
+ * arithmetic, and dead ends fall back to the same windows.
+ * The storage is made of three regions:
+ *   slots      the hash table of a WindowIndex, with the same hashes and
+ *              slots: a long per slot, holding a fingerprint of the hash
+ *              (upper 32 bits) and the entry number plus 1
+ *   entries    a fixed-size record per window: its hash, the total count and
+ *              the first follower of the window, and the window's characters
+ *   followers  a 12-byte record per follower: its character, its count, and
+ *              the number of the next follower of the same window (a linked
+ *              list, with the most recently added follower first, as in List)
+ * Each region is a list of direct buffers of up to 1 GB each (see Region), so
+ * it is not limited to the 2 GB of a single buffer. Records are numbered with
+ * ints, so a model holds up to 2^29 windows (the slots are half empty) and
+ * 2^31 - 1 followers, which take more than 40 GB.
+ * The memory of the model is released by close(); the model cannot be used
+ * after it is closed.
+ */
+public class OffHeapLanguageModel implements AutoCloseable {
+
+    // The offsets of the fields of an entry record
+    private static final int ENTRY_HASH = 0;
+    private static final int ENTRY_TOTAL = 8;
+    private static final int ENTRY_FIRST = 12;
+    private static final int ENTRY_WINDOW = 16;
+
+    // The size and the offsets of the fields of a follower record
+    private static final int FOLLOWER_SIZE = 12;
+    private static final int FOLLOWER_CHR = 0;
+    private static final int FOLLOWER_COUNT = 4;
+    private static final int FOLLOWER_NEXT = 8;
+
+    // Marks the end of a list of followers
+    private static final int NONE = -1;
+
+    // The largest size of a single buffer of a region
+    private static final int SEGMENT_SIZE = 1 << 30;
+
+    // The largest number of slots (a slot number is an int, and 8 GB of slots
+    // hold 2^29 windows)
+    private static final int MAX_SLOTS = 1 << 30;
+
+    // The three regions of the model
+    private Region slots;
+    private Region entries;
+    private Region followers;
+
+    // The largest size of a single buffer of the regions of this model
+    private final int segmentSize;
+
+    // The number of slots, entries (windows) and followers in use
+    private int slotCount;
+    private int size;
+    private int followerCount;
+
+    // The size of an entry record: the fixed fields and the window
+    private final int entrySize;
+
+    // The weight of the oldest character of a window (see WindowIndex.oldestWeight)
+    private final long oldestWeight;
+
+    // The window that a LanguageModel would fall back to on a dead end, or
+    // NONE if it has to be found again (after training)
+    private int fallbackEntry = NONE;
+
+    // True after close() was called
+    private boolean closed;
+
+    // The window length used in this model.
+    private final int windowLength;
+
+    // The random number generator used by this model.
+    private final Random randomGenerator;
+
+    /**
+     * Constructs a language model with the given window length and a given
+     * seed value. Generating texts from this model multiple times with the
+     * same seed value will produce the same random texts.
+     */
+    public OffHeapLanguageModel(int windowLength, int seed) {
+        this(windowLength, new Random(seed), SEGMENT_SIZE);
+    }
+
+    // Constructs a language model whose regions are split into buffers of at
+    // most the given size (for testing models that span several buffers).
+    OffHeapLanguageModel(int windowLength, int seed, int segmentSize) {
+        this(windowLength, new Random(seed), segmentSize);
+    }
+
+    /**
+     * Constructs a language model with the given window length.
+     * Generating texts from this model multiple times will produce
+     * different random texts.
+     */
+    public OffHeapLanguageModel(int windowLength) {
+        this(windowLength, new Random(), SEGMENT_SIZE);
+    }
+
+    private OffHeapLanguageModel(int windowLength, Random randomGenerator, int segmentSize) {
+        this.windowLength = windowLength;
+        this.randomGenerator = randomGenerator;
+        this.segmentSize = segmentSize;
+        entrySize = (ENTRY_WINDOW + 2 * windowLength + 3) & ~3;
+        oldestWeight = WindowIndex.oldestWeight(windowLength);
+        slotCount = 16;
+        slots = new Region(8, slotCount, segmentSize);
+        entries = new Region(entrySize, 8, segmentSize);
+        followers = new Region(FOLLOWER_SIZE, 8, segmentSize);
+    }
+
+    /** Returns the number of windows in this model. */
+    public int getWindowCount() {
+        ensureOpen();
+        return size;
+    }
+
+    /** Returns the number of bytes that this model takes outside the heap. */
+    public long offHeapSize() {
+        ensureOpen();
+        return slots.bytes() + entries.bytes() + followers.bytes();
+    }
+
+    /** Builds a language model from the text in the given file (the corpus). */
+    public void train(String fileName) {
+        In in = new In(fileName);
+        trainText(in.readAll().replace("\r", ""));
+    }
+
+    /**
+     * Adds the given text to this model. The text is treated as a separate
+     * document: its first window does not continue the previous text.
+     */
+    public void trainText(CharSequence text) {
+        ensureOpen();
+        if (text.length() <= windowLength) {
+            return;
+        }
+        long hash = hash(text, 0);
+        for (int i = 0; i < text.length() - windowLength; i++) {
+            char c = text.charAt(i + windowLength);
+            int entry = find(hash, text, i);
+            if (entry == NONE) {
+                entry = add(hash, text, i);
+            }
+            update(entry, c);
+            hash = roll(hash, text.charAt(i), c);
+        }
+        fallbackEntry = NONE;
+    }
+
+    /**
+     * Generates a random text, based on the probabilities that were learned
+     * during training. Generates the same text as a LanguageModel with the
+     * same window length and seed, trained on the same texts.
+     */
+    public String generate(String initialText, int textLength) {
+        ensureOpen();
+        // Nothing was trained, or the initial text is too short
+        if (size == 0 || initialText.length() < windowLength) {
+            return initialText;
+        }
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+        int windowStart = generatedText.length() - windowLength;
+        long hash = hash(generatedText, windowStart);
+        while (generatedText.length() < textLength) {
+            int entry = find(hash, generatedText, windowStart);
+            // Dead end: resets to the initial seed, or to the first window of a LanguageModel
+            if (entry == NONE) {
+                entry = find(hash(initialText, 0), initialText, 0);
+            }
+            if (entry == NONE) {
+                entry = fallbackEntry();
+            }
+            char c = getRandomChar(entry);
+            generatedText.append(c);
+            hash = roll(hash, generatedText.charAt(windowStart), c);
+            windowStart++;
+        }
+        return generatedText.toString();
+    }
+
+    // Returns a random follower of the given window. Computes the cumulative
+    // probabilities on the fly, with the same arithmetic as
+    // LanguageModel.calculateProbabilities, and returns the first follower
+    // whose cumulative probability is greater than a random number.
+    private char getRandomChar(int entry) {
+        double r = randomGenerator.nextDouble();
+        int total = entries.getInt(entry, ENTRY_TOTAL);
+        double cumulativeProb = 0.0;
+        int last = NONE;
+        for (int f = entries.getInt(entry, ENTRY_FIRST); f != NONE; f = followers.getInt(f, FOLLOWER_NEXT)) {
+            cumulativeProb += (double) followers.getInt(f, FOLLOWER_COUNT) / total;
+            if (cumulativeProb > r) {
+                return followers.getChar(f, FOLLOWER_CHR);
+            }
+            last = f;
+        }
+        // Fallback for rounding errors (returns the last char)
+        return followers.getChar(last, FOLLOWER_CHR);
+    }
+
+    // Returns the window that LanguageModel.generate falls back to when even
+    // the initial window is missing: the first window in the iteration order
+    // of a HashMap that holds all the windows.
+    private int fallbackEntry() {
+        if (fallbackEntry == NONE) {
+            fallbackEntry = hashMapOrder()[0];
+        }
+        return fallbackEntry;
+    }
+
+    // Returns the entry numbers of all the windows, in the order in which a
+    // HashMap iterates them (see WindowIndex.hashMapOrder).
+    private int[] hashMapOrder() {
+        String[] windows = new String[size];
+        for (int entry = 0; entry < size; entry++) {
+            windows[entry] = windowAt(entry);
+        }
+        return WindowIndex.hashMapOrder(windows);
+    }
+
+    // Returns the window of the given entry.
+    private String windowAt(int entry) {
+        char[] window = new char[windowLength];
+        for (int i = 0; i < windowLength; i++) {
+            window[i] = entries.getChar(entry, ENTRY_WINDOW + 2 * i);
+        }
+        return new String(window);
+    }
+
+    // Returns the hash of the window that starts at the given position of
+    // the text, the same hash as a WindowIndex.
+    private long hash(CharSequence text, int start) {
+        return WindowIndex.hash(text, start, windowLength);
+    }
+
+    // Given the hash of a window, returns the hash of the next window.
+    private long roll(long hash, char oldest, char next) {
+        return WindowIndex.roll(hash, oldest, next, windowLength, oldestWeight);
+    }
+
+    // Returns the entry of the window that starts at the given position of
+    // the text and has the given hash, or NONE if the window is not in this model.
+    private int find(long hash, CharSequence text, int start) {
+        long mixed = WindowIndex.mix(hash);
+        int mask = slotCount - 1;
+        int slot = WindowIndex.homeSlot(mixed, slotCount);
+        long s;
+        while ((s = slots.getLong(slot, 0)) != 0) {
+            if (WindowIndex.slotMatches(s, mixed)) {
+                int entry = WindowIndex.entryOfSlot(s);
+                if (matches(entry, hash, text, start)) {
+                    return entry;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return NONE;
+    }
+
+    // Checks if the given entry holds the window that starts at the given
+    // position of the text, and has the given hash.
+    private boolean matches(int entry, long hash, CharSequence text, int start) {
+        if (entries.getLong(entry, ENTRY_HASH) != hash) {
+            return false;
+        }
+        for (int i = 0; i < windowLength; i++) {
+            if (entries.getChar(entry, ENTRY_WINDOW + 2 * i) != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Adds the window that starts at the given position of the text, and has
+    // the given hash, without followers. Returns its entry.
+    private int add(long hash, CharSequence text, int start) {
+        if (size + 1 > slotCount / 2) {
+            resizeSlots();
+        }
+        entries.ensureCapacity(size + 1L);
+        entries.putLong(size, ENTRY_HASH, hash);
+        entries.putInt(size, ENTRY_TOTAL, 0);
+        entries.putInt(size, ENTRY_FIRST, NONE);
+        for (int i = 0; i < windowLength; i++) {
+            entries.putChar(size, ENTRY_WINDOW + 2 * i, text.charAt(start + i));
+        }
+        insert(hash, size);
+        return size++;
+    }
+
+    // Counts the given follower of the given window, as List.update does: if
+    // the character is a follower, increments its count, and otherwise adds it
+    // as the first follower of the window.
+    private void update(int entry, char chr) {
+        entries.putInt(entry, ENTRY_TOTAL, entries.getInt(entry, ENTRY_TOTAL) + 1);
+        int first = entries.getInt(entry, ENTRY_FIRST);
+        for (int f = first; f != NONE; f = followers.getInt(f, FOLLOWER_NEXT)) {
+            if (followers.getChar(f, FOLLOWER_CHR) == chr) {
+                followers.putInt(f, FOLLOWER_COUNT, followers.getInt(f, FOLLOWER_COUNT) + 1);
+                return;
+            }
+        }
+        if (followerCount == Integer.MAX_VALUE) {
+            throw new IllegalStateException("Too many followers for an off-heap model: " + followerCount);
+        }
+        followers.ensureCapacity(followerCount + 1L);
+        int f = followerCount;
+        followers.putChar(f, FOLLOWER_CHR, chr);
+        followers.putInt(f, FOLLOWER_COUNT, 1);
+        followers.putInt(f, FOLLOWER_NEXT, first);
+        entries.putInt(entry, ENTRY_FIRST, f);
+        followerCount++;
+    }
+
+    // Puts the given entry in the first free slot, starting at its home slot.
+    private void insert(long hash, int entry) {
+        long mixed = WindowIndex.mix(hash);
+        int mask = slotCount - 1;
+        int slot = WindowIndex.homeSlot(mixed, slotCount);
+        while (slots.getLong(slot, 0) != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots.putLong(slot, 0, WindowIndex.slot(mixed, entry));
+    }
+
+    // Doubles the number of slots, and reinserts all the entries. The old
+    // slots are released only after the new ones were allocated and filled.
+    private void resizeSlots() {
+        if (slotCount >= MAX_SLOTS) {
+            throw new IllegalStateException("Too many windows for an off-heap model: " + size);
+        }
+        Region oldSlots = slots;
+        slots = new Region(8, 2L * slotCount, segmentSize);
+        slotCount *= 2;
+        for (int entry = 0; entry < size; entry++) {
+            insert(entries.getLong(entry, ENTRY_HASH), entry);
+        }
+        oldSlots.free();
+    }
+
+    /**
+     * Releases the memory of this model. The model cannot be used after it is
+     * closed; closing it again does nothing.
+     */
+    public void close() {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        slots.free();
+        entries.free();
+        followers.free();
+        slots = null;
+        entries = null;
+        followers = null;
+    }
+
+    // Throws an IllegalStateException if this model was closed.
+    private void ensureOpen() {
+        if (closed) {
+            throw new IllegalStateException("The model is closed");
+        }
+    }
+
+    // Releases the memory of the given direct buffer now, instead of when the
+    // buffer is garbage collected. Uses sun.misc.Unsafe.invokeCleaner, which
+    // is available (in the jdk.unsupported module) since Java 9; if it cannot
+    // be used, the memory is released when the buffer is collected.
+    private static void free(ByteBuffer buffer) {
+        if (INVOKE_CLEANER != null) {
+            try {
+                INVOKE_CLEANER.invoke(UNSAFE, buffer);
+            } catch (ReflectiveOperationException e) {
+                // Left to the garbage collector
+            }
+        }
+    }
+
+    // The Unsafe instance and its invokeCleaner method, or null if they are not available
+    private static final Object UNSAFE;
+    private static final Method INVOKE_CLEANER;
+
+    static {
+        Object unsafe = null;
+        Method invokeCleaner = null;
+        try {
+            Class<?> unsafeClass = Class.forName("sun.misc.Unsafe");
+            Field theUnsafe = unsafeClass.getDeclaredField("theUnsafe");
+            theUnsafe.setAccessible(true);
+            unsafe = theUnsafe.get(null);
+            invokeCleaner = unsafeClass.getMethod("invokeCleaner", ByteBuffer.class);
+        } catch (ReflectiveOperationException | RuntimeException e) {
+            unsafe = null;
+            invokeCleaner = null;
+        }
+        UNSAFE = unsafe;
+        INVOKE_CLEANER = invokeCleaner;
+    }
+
+    // A growable array of fixed-size records, kept in direct buffers of at
+    // most a given size, so it is not limited to the 2 GB of a single buffer.
+    // Records are addressed by their number, and never straddle two buffers:
+    // each full buffer (segment) holds a power of two records. The first
+    // segment grows by doubling until it is full, and then segments of the
+    // full size are added, so growing never copies more than one segment,
+    // and a buffer is released only after its copy was allocated.
+    private static final class Region {
+
+        // The size of a record, the log of the number of records in a full
+        // segment, and the mask of the number of a record within its segment
+        private final int recordSize;
+        private final int segmentBits;
+        private final long recordMask;
+
+        // The segments, and the number of records that they hold
+        private ByteBuffer[] segments = new ByteBuffer[1];
+        private int segmentCount;
+        private long capacity;
+
+        // Constructs a region that holds at least the given number of records,
+        // in segments of at most the given size (or a single record, if larger).
+        Region(int recordSize, long records, int segmentSize) {
+            this.recordSize = recordSize;
+            int bits = 0;
+            while ((2L << bits) * recordSize <= segmentSize) {
+                bits++;
+            }
+            segmentBits = bits;
+            recordMask = (1L << bits) - 1;
+            ensureCapacity(records);
+        }
+
+        // Makes room for at least the given number of records.
+        void ensureCapacity(long records) {
+            long segmentRecords = 1L << segmentBits;
+            if (segmentCount == 1 && capacity < records && capacity < segmentRecords) {
+                long grownRecords = Math.min(Math.max(records, 2 * capacity), segmentRecords);
+                ByteBuffer grown = ByteBuffer.allocateDirect((int) (grownRecords * recordSize));
+                grown.put(segments[0].duplicate().clear());
+                OffHeapLanguageModel.free(segments[0]);
+                segments[0] = grown;
+                capacity = grownRecords;
+            }
+            while (capacity < records) {
+                long addedRecords = segmentCount == 0 ? Math.min(records, segmentRecords) : segmentRecords;
+                ByteBuffer segment = ByteBuffer.allocateDirect((int) (addedRecords * recordSize));
+                if (segmentCount == segments.length) {
+                    segments = Arrays.copyOf(segments, 2 * segmentCount);
+                }
+                segments[segmentCount++] = segment;
+                capacity += addedRecords;
+            }
+        }
+
+        // Returns the number of bytes that the segments of this region take.
+        long bytes() {
+            return capacity * recordSize;
+        }
+
+        // Releases the segments of this region.
+        void free() {
+            for (int i = 0; i < segmentCount; i++) {
+                OffHeapLanguageModel.free(segments[i]);
+            }
+            segments = null;
+        }
+
+        long getLong(long record, int field) {
+            return segment(record).getLong(offset(record, field));
+        }
+
+        int getInt(long record, int field) {
+            return segment(record).getInt(offset(record, field));
+        }
+
+        char getChar(long record, int field) {
+            return segment(record).getChar(offset(record, field));
+        }
+
+        void putLong(long record, int field, long value) {
+            segment(record).putLong(offset(record, field), value);
+        }
+
+        void putInt(long record, int field, int value) {
+            segment(record).putInt(offset(record, field), value);
+        }
+
+        void putChar(long record, int field, char value) {
+            segment(record).putChar(offset(record, field), value);
+        }
+
+        // Returns the segment of the given record.
+        private ByteBuffer segment(long record) {
+            return segments[(int) (record >>> segmentBits)];
+        }
+
+        // Returns the offset of the given field of the given record in its segment.
+        private int offset(long record, int field) {
+            return (int) (record & recordMask) * recordSize + field;
+        }
+    }
+
+    /**
+     * Returns a string representing the windows and followers of this model,
+     * in the same format and order as LanguageModel.toString.
+     */
+    public String toString() {
+        ensureOpen();
+        // Orders the windows as a HashMap iterates them
+        StringBuilder str = new StringBuilder();
+        for (int entry : hashMapOrder()) {
+            int total = entries.getInt(entry, ENTRY_TOTAL);
+            str.append(windowAt(entry) + " : (");
+            double cumulativeProb = 0.0;
+            for (int f = entries.getInt(entry, ENTRY_FIRST); f != NONE; f = followers.getInt(f, FOLLOWER_NEXT)) {
+                CharData cd = new CharData(followers.getChar(f, FOLLOWER_CHR));
+                cd.count = followers.getInt(f, FOLLOWER_COUNT);
+                cd.p = (double) cd.count / total;
+                cumulativeProb += cd.p;
+                cd.cp = cumulativeProb;
+                str.append(cd);
+                if (followers.getInt(f, FOLLOWER_NEXT) != NONE) {
+                    str.append(" ");
+                }
+            }
+            str.append(")\n");
+        }
+        return str.toString();
+    }
+
+    public static void main(String[] args) {
+        int windowLength = Integer.parseInt(args[0]);
+        String initialText = args[1];
+        int generatedTextLength = Integer.parseInt(args[2]);
+        Boolean randomGeneration = args[3].equals("random");
+        String fileName = args[4];
+
+        try (OffHeapLanguageModel lm = randomGeneration
+                ? new OffHeapLanguageModel(windowLength)
+                : new OffHeapLanguageModel(windowLength, 20)) {
+            lm.train(fileName);
+            System.out.println(lm.generate(initialText, generatedTextLength));
+        }
+    }
+}
@@ -0,0 +1,395 @@
+import java.util.Arrays;
+import java.util.Random;
+import java.util.random.RandomGenerator;
+
+/**
+ * A language model backed by a suffix automaton of the training texts,
+ * instead of a map from window strings to followers.
+ * The automaton has a state for each set of substrings of the texts that
+ * occur at exactly the same end positions, and a transition from the state
+ * of a substring s by the character x to the state of sx. So the followers of
+ * a window are the transitions of its state, and the count of follower x is
+ * the number of occurrences of the window followed by x, which is the number
+ * of end positions of the state that the transition leads to. These are the
+ * same counts that a LanguageModel of the same window length learns.
+ * The automaton of texts of n characters has at most 2n states and 3n
+ * transitions, whatever the window length, and no window is stored as a
+ * String, so the window length only affects generation: a model with window
+ * length 20 takes the same memory as a model with window length 2.
+ * The states and transitions are kept in int and char arrays, and the
+ * transitions of each state are a linked list in these arrays.
+ * Generation keeps the state of the current window, and moves it along a
+ * transition for each new character, so it does no hashing and no window
+ * lookups. When the current window has no followers (it occurs only at the
+ * end of a text), generation backs off to the longest shorter window that
+ * has followers, like BackoffLanguageModel. Followers are drawn by their
+ * counts, so the texts differ from those of a LanguageModel.
+ */
+public class SuffixAutomatonModel {
+
+    // The state of the empty string
+    private static final int ROOT = 0;
+
+    // Marks the end of a list of transitions, and a missing suffix link
+    private static final int NONE = -1;
+
+    // The states: the length of the longest substring of each state, its
+    // suffix link (the state of its longest suffix that ends at more
+    // positions), the number of texts whose prefixes end in it, the number of
+    // end positions of its substrings (computed from the former), and the
+    // first of its transitions.
+    private int[] len;
+    private int[] link;
+    private int[] ownCount;
+    private int[] occurrences;
+    private int[] firstTransition;
+    private int states;
+
+    // The transitions: the character, target state, and next transition
+    // (of the same state) of each transition.
+    private char[] transitionChar;
+    private int[] transitionTarget;
+    private int[] nextTransition;
+    private int transitions;
+
+    // The state of the text that was added so far, during training
+    private int last;
+
+    // The window length used in this model.
+    private final int windowLength;
+
+    // The random number generator used by this model.
+    private final Random randomGenerator;
+
+    /**
+     * Constructs a language model with the given window length and a given
+     * seed value. Generating texts from this model multiple times with the
+     * same seed value will produce the same random texts.
+     */
+    public SuffixAutomatonModel(int windowLength, int seed) {
+        this(windowLength, new Random(seed));
+    }
+
+    /**
+     * Constructs a language model with the given window length.
+     * Generating texts from this model multiple times will produce
+     * different random texts.
+     */
+    public SuffixAutomatonModel(int windowLength) {
+        this(windowLength, new Random());
+    }
+
+    private SuffixAutomatonModel(int windowLength, Random randomGenerator) {
+        this.windowLength = windowLength;
+        this.randomGenerator = randomGenerator;
+        len = new int[16];
+        link = new int[16];
+        ownCount = new int[16];
+        occurrences = new int[16];
+        firstTransition = new int[16];
+        transitionChar = new char[16];
+        transitionTarget = new int[16];
+        nextTransition = new int[16];
+        newState(0, NONE);
+    }
+
+    /** Returns the window length of this model. */
+    public int getWindowLength() {
+        return windowLength;
+    }
+
+    /** Returns the number of states of the automaton. */
+    public int getStateCount() {
+        return states;
+    }
+
+    /** Returns the number of transitions of the automaton. */
+    public int getTransitionCount() {
+        return transitions;
+    }
+
+    /** Builds the model from the text in the given file (the corpus). */
+    public void train(String fileName) {
+        In in = new In(fileName);
+        trainText(in.readAll().replace("\r", ""));
+    }
+
+    /**
+     * Adds the given text to this model. The text is treated as a separate
+     * document: its first windows do not continue the previous text.
+     * Extends the automaton by one character at a time, in amortized constant
+     * time per character, and then counts the end positions of all the states.
+     */
+    public void trainText(CharSequence text) {
+        last = ROOT;
+        for (int i = 0; i < text.length(); i++) {
+            extend(text.charAt(i));
+        }
+        countOccurrences();
+    }
+
+    // Adds the given character to the end of the current text (the standard
+    // online construction, generalized to many texts).
+    private void extend(char c) {
+        int q = target(last, c);
+        if (q != NONE) {
+            // The extended text was already seen, as a substring of an earlier text
+            if (len[q] == len[last] + 1) {
+                last = q;
+            } else {
+                last = split(last, c, q);
+            }
+            ownCount[last]++;
+            return;
+        }
+        int cur = newState(len[last] + 1, NONE);
+        ownCount[cur] = 1;
+        int p = last;
+        while (p != NONE && target(p, c) == NONE) {
+            addTransition(p, c, cur);
+            p = link[p];
+        }
+        int suffixLink = ROOT;
+        if (p != NONE) {
+            q = target(p, c);
+            // Split may grow the arrays, so it is called before link is indexed
+            suffixLink = len[q] == len[p] + 1 ? q : split(p, c, q);
+        }
+        link[cur] = suffixLink;
+        last = cur;
+    }
+
+    // Splits the state q, which is the target of the transition of p by c,
+    // so that the substrings of q that are not longer than len[p] + 1 move to
+    // a new state. Redirects the transitions by c to q from p and its
+    // suffixes to the new state, and returns it.
+    private int split(int p, char c, int q) {
+        int clone = newState(len[p] + 1, link[q]);
+        for (int t = firstTransition[q]; t != NONE; t = nextTransition[t]) {
+            addTransition(clone, transitionChar[t], transitionTarget[t]);
+        }
+        link[q] = clone;
+        while (p != NONE && setTarget(p, c, q, clone)) {
+            p = link[p];
+        }
+        return clone;
+    }
+
+    // Computes the number of end positions of every state: the count of the
+    // state itself, plus the counts of all the states whose suffix links lead
+    // to it. Visits the states from the longest to the shortest, by counting sort.
+    private void countOccurrences() {
+        int maxLength = 0;
+        for (int v = 0; v < states; v++) {
+            maxLength = Math.max(maxLength, len[v]);
+        }
+        int[] byLength = new int[maxLength + 2];
+        for (int v = 0; v < states; v++) {
+            byLength[len[v] + 1]++;
+        }
+        for (int l = 1; l < byLength.length; l++) {
+            byLength[l] += byLength[l - 1];
+        }
+        int[] order = new int[states];
+        for (int v = 0; v < states; v++) {
+            order[byLength[len[v]]++] = v;
+        }
+        System.arraycopy(ownCount, 0, occurrences, 0, states);
+        for (int i = states - 1; i > 0; i--) {
+            int v = order[i];
+            occurrences[link[v]] += occurrences[v];
+        }
+    }
+
+    // Returns the target of the transition of state p by c, or NONE.
+    private int target(int p, char c) {
+        for (int t = firstTransition[p]; t != NONE; t = nextTransition[t]) {
+            if (transitionChar[t] == c) {
+                return transitionTarget[t];
+            }
+        }
+        return NONE;
+    }
+
+    // If the transition of state p by c leads to the given state, redirects
+    // it to the given new target and returns true. Otherwise returns false.
+    private boolean setTarget(int p, char c, int from, int to) {
+        for (int t = firstTransition[p]; t != NONE; t = nextTransition[t]) {
+            if (transitionChar[t] == c) {
+                if (transitionTarget[t] != from) {
+                    return false;
+                }
+                transitionTarget[t] = to;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // Adds a state with the given length and suffix link, and returns it.
+    private int newState(int length, int suffixLink) {
+        if (states == len.length) {
+            int capacity = 2 * states;
+            len = Arrays.copyOf(len, capacity);
+            link = Arrays.copyOf(link, capacity);
+            ownCount = Arrays.copyOf(ownCount, capacity);
+            occurrences = Arrays.copyOf(occurrences, capacity);
+            firstTransition = Arrays.copyOf(firstTransition, capacity);
+        }
+        len[states] = length;
+        link[states] = suffixLink;
+        firstTransition[states] = NONE;
+        return states++;
+    }
+
+    // Adds a transition from state p by c to the given target.
+    private void addTransition(int p, char c, int target) {
+        if (transitions == transitionChar.length) {
+            int capacity = 2 * transitions;
+            transitionChar = Arrays.copyOf(transitionChar, capacity);
+            transitionTarget = Arrays.copyOf(transitionTarget, capacity);
+            nextTransition = Arrays.copyOf(nextTransition, capacity);
+        }
+        transitionChar[transitions] = c;
+        transitionTarget[transitions] = target;
+        nextTransition[transitions] = firstTransition[p];
+        firstTransition[p] = transitions++;
+    }
+
+    /**
+     * Returns the followers of the given window, with their counts, or null
+     * if the window was not seen in training. Walks the window from the
+     * state of the empty string, in O(window length) transitions.
+     * The window may have any length, not only the window length of the model.
+     */
+    public FollowerTable getFollowers(String window) {
+        int v = ROOT;
+        for (int i = 0; i < window.length() && v != NONE; i++) {
+            v = target(v, window.charAt(i));
+        }
+        if (v == NONE || firstTransition[v] == NONE) {
+            return null;
+        }
+        FollowerTable table = new FollowerTable(false);
+        for (int t = firstTransition[v]; t != NONE; t = nextTransition[t]) {
+            table.add(transitionChar[t], occurrences[transitionTarget[t]]);
+        }
+        return table;
+    }
+
+    /**
+     * Generates a random text, based on the counts that were learned during
+     * training. Each character is drawn from the followers of the last
+     * windowLength characters of the text, or of the longest shorter tail of
+     * the text that has followers.
+     */
+    public String generate(String initialText, int textLength) {
+        return generate(initialText, textLength, randomGenerator);
+    }
+
+    /**
+     * Generates a random text, drawing its characters from the given random
+     * number generator instead of the generator of this model.
+     */
+    public String generate(String initialText, int textLength, RandomGenerator random) {
+        // Nothing was trained: there is nothing to draw from
+        if (firstTransition[ROOT] == NONE) {
+            return initialText;
+        }
+        StringBuilder generatedText = new StringBuilder(Math.max(textLength, initialText.length()));
+        generatedText.append(initialText);
+
+        // Finds the state of the longest tail of the initial text that was seen
+        int v = ROOT;
+        int length = 0;
+        for (int i = 0; i < initialText.length(); i++) {
+            char c = initialText.charAt(i);
+            while (v != ROOT && target(v, c) == NONE) {
+                v = link[v];
+                length = len[v];
+            }
+            int next = target(v, c);
+            if (next != NONE) {
+                v = next;
+                length++;
+            }
+            if (length > windowLength) {
+                v = shorten(v);
+                length = windowLength;
+            }
+        }
+
+        while (generatedText.length() < textLength) {
+            // Backs off from windows without followers to their longest suffix
+            while (firstTransition[v] == NONE) {
+                v = link[v];
+                length = len[v];
+            }
+            int t = randomTransition(v, random);
+            generatedText.append(transitionChar[t]);
+            v = transitionTarget[t];
+            length++;
+            if (length > windowLength) {
+                v = shorten(v);
+                length = windowLength;
+            }
+        }
+        return generatedText.toString();
+    }
+
+    // Given the state of a string that is longer than the window length,
+    // returns the state of its suffix of the window length.
+    private int shorten(int v) {
+        while (v != ROOT && len[link[v]] >= windowLength) {
+            v = link[v];
+        }
+        return v;
+    }
+
+    // Returns a random transition of the given state, drawn by the counts of
+    // the followers that the transitions lead to.
+    private int randomTransition(int v, RandomGenerator random) {
+        int total = 0;
+        for (int t = firstTransition[v]; t != NONE; t = nextTransition[t]) {
+            total += occurrences[transitionTarget[t]];
+        }
+        int r = random.nextInt(total);
+        int t = firstTransition[v];
+        while ((r -= occurrences[transitionTarget[t]]) >= 0) {
+            t = nextTransition[t];
+        }
+        return t;
+    }
+
+    /**
+     * Returns an estimate of the number of bytes that the automaton takes on
+     * the heap: its five int arrays of states, and its three arrays of transitions.
+     */
+    public long heapSize() {
+        return 5 * (16 + 4L * len.length) + (16 + 2L * transitionChar.length)
+                + 2 * (16 + 4L * transitionTarget.length);
+    }
+
+    /** Returns a string with the size of the automaton. */
+    public String toString() {
+        return "states: " + states + ", transitions: " + transitions
+                + ", heap: " + heapSize() / 1024 + " KB";
+    }
+
+    public static void main(String[] args) {
+        int windowLength = Integer.parseInt(args[0]);
+        String initialText = args[1];
+        int generatedTextLength = Integer.parseInt(args[2]);
+        Boolean randomGeneration = args[3].equals("random");
+        String fileName = args[4];
+
+        SuffixAutomatonModel lm;
+        if (randomGeneration)
+            lm = new SuffixAutomatonModel(windowLength);
+        else
+            lm = new SuffixAutomatonModel(windowLength, 20);
+
+        lm.train(fileName);
+        System.out.println(lm.generate(initialText, generatedTextLength));
+    }
+}
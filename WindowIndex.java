@@ -0,0 +1,351 @@
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+ * An index that finds the followers of a window without creating a String for
+ * the window. A window is given as a position in a text (any CharSequence),
+ * and is identified by a hash that can be rolled from one position to the next
+ * in constant time.
+ * For windows of up to 4 characters, the hash packs the 16-bit characters of
+ * the window into a long, so different windows always have different hashes.
+ * For longer windows, the hash is a polynomial rolling hash, and windows with
+ * equal hashes are told apart by comparing their characters.
+ * The index is an open-addressing hash table with linear probing and a
+ * power-of-two capacity. Each slot is a single long, holding a fingerprint of
+ * the hash and the number of an entry, so most probes that do not match are
+ * rejected without leaving the slot array. The entries are kept densely, in
+ * the order in which they were added: the hash, the followers, and (for long
+ * windows) the characters of each window, in a single char array, so the
+ * index holds no String and no other object per window.
+ */
+public class WindowIndex<V> {
+
+    // The largest window length whose characters fit in a packed long
+    private static final int MAX_PACKED_LENGTH = 4;
+
+    // The multiplier of the polynomial rolling hash (odd, so it is invertible)
+    private static final long MULTIPLIER = 0x9E3779B97F4A7C15L;
+
+    // The maximal ratio between the number of entries and the capacity
+    private static final double LOAD_FACTOR = 0.5;
+
+    // Mask of the entry number bits in a slot
+    private static final long ENTRY_MASK = 0xFFFFFFFFL;
+
+    // The window length of this index
+    private final int windowLength;
+
+    // True if the hashes of this index are packed windows
+    private final boolean packed;
+
+    // The weight of the oldest character of a window (see oldestWeight)
+    private final long oldestWeight;
+
+    // The slots: 0 if the slot is free, and otherwise the fingerprint of the
+    // hash of an entry (upper 32 bits) and the entry number plus 1 (lower 32 bits)
+    private long[] slots;
+
+    // The entries, in the order in which they were added: the hash and
+    // followers of each entry, and the characters of the windows of all the
+    // entries, windowLength per entry (only for windows that are not packed)
+    private long[] hashes;
+    private V[] values;
+    private char[] keys;
+
+    // The number of entries in this index
+    private int size;
+
+    /** Constructs an empty index for windows of the given length. */
+    public WindowIndex(int windowLength) {
+        this.windowLength = windowLength;
+        packed = windowLength <= MAX_PACKED_LENGTH;
+        oldestWeight = oldestWeight(windowLength);
+        clear();
+    }
+
+    /** Returns the number of windows in this index. */
+    public int size() {
+        return size;
+    }
+
+    /** Returns the hash of the window that starts at the given position of the text. */
+    public long hash(CharSequence text, int start) {
+        return hash(text, start, windowLength);
+    }
+
+    /**
+     * Given the hash of a window, returns the hash of the next window: the one
+     * that drops the given oldest character and ends with the given new character.
+     */
+    public long roll(long hash, char oldest, char next) {
+        return roll(hash, oldest, next, windowLength, oldestWeight);
+    }
+
+    /**
+     * Returns the followers of the window that starts at the given position of
+     * the text and has the given hash, or null if the window is not in this index.
+     */
+    public V get(long hash, CharSequence text, int start) {
+        int entry = entryOf(hash, text, start);
+        return entry < 0 ? null : values[entry];
+    }
+
+    /**
+     * Returns the entry number of the window that starts at the given position
+     * of the text and has the given hash, or -1 if the window is not in this
+     * index. Entries are numbered from 0, in the order in which they were added.
+     */
+    public int entryOf(long hash, CharSequence text, int start) {
+        long mixed = mix(hash);
+        int mask = slots.length - 1;
+        int slot = homeSlot(mixed, slots.length);
+        long s;
+        while ((s = slots[slot]) != 0) {
+            if (slotMatches(s, mixed)) {
+                int entry = entryOfSlot(s);
+                if (hashes[entry] == hash && matches(entry, text, start)) {
+                    return entry;
+                }
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /** Returns the followers of the given entry. */
+    public V valueAt(int entry) {
+        return values[entry];
+    }
+
+    /** Replaces the followers of the given entry with the given followers (not null). */
+    public void setValueAt(int entry, V followers) {
+        values[entry] = followers;
+    }
+
+    /** Returns the window of the given entry. */
+    public String keyAt(int entry) {
+        if (!packed) {
+            return new String(keys, entry * windowLength, windowLength);
+        }
+        char[] window = new char[windowLength];
+        long hash = hashes[entry];
+        for (int i = windowLength - 1; i >= 0; i--) {
+            window[i] = (char) hash;
+            hash >>>= 16;
+        }
+        return new String(window);
+    }
+
+    /**
+     * Returns the entry numbers of all the windows, in the order in which a
+     * HashMap iterates them, if it got the same windows in the same order
+     * (the order in which they were added to this index).
+     */
+    public int[] hashMapOrder() {
+        String[] windows = new String[size];
+        for (int entry = 0; entry < size; entry++) {
+            windows[entry] = keyAt(entry);
+        }
+        return hashMapOrder(windows);
+    }
+
+    /** Returns the followers of the given window, or null if it is not in this index. */
+    public V get(String window) {
+        return get(hash(window, 0), window, 0);
+    }
+
+    /**
+     * Adds the given window, whose hash is the given hash, with the given
+     * followers (not null). Should be called only if the window is not
+     * already in this index. Returns the entry number of the window.
+     */
+    public int put(long hash, String window, V followers) {
+        if (size + 1 > slots.length * LOAD_FACTOR) {
+            resize();
+        }
+        if (size == values.length) {
+            int capacity = 2 * size;
+            hashes = Arrays.copyOf(hashes, capacity);
+            values = Arrays.copyOf(values, capacity);
+            if (!packed) {
+                keys = Arrays.copyOf(keys, capacity * windowLength);
+            }
+        }
+        hashes[size] = hash;
+        values[size] = followers;
+        if (!packed) {
+            window.getChars(0, windowLength, keys, size * windowLength);
+        }
+        insert(hash, size);
+        return size++;
+    }
+
+    /**
+     * Makes room for the given number of windows in this index, so adding them
+     * does not resize it again and again.
+     */
+    public void ensureCapacity(int windows) {
+        if (windows > values.length) {
+            hashes = Arrays.copyOf(hashes, windows);
+            values = Arrays.copyOf(values, windows);
+            if (!packed) {
+                keys = Arrays.copyOf(keys, windows * windowLength);
+            }
+        }
+        int capacity = slots.length;
+        while (windows > capacity * LOAD_FACTOR) {
+            capacity *= 2;
+        }
+        if (capacity > slots.length) {
+            slots = new long[capacity];
+            for (int entry = 0; entry < size; entry++) {
+                insert(hashes[entry], entry);
+            }
+        }
+    }
+
+    /**
+     * Returns an estimate of the number of bytes that the arrays of this
+     * index take on the heap (not counting the followers).
+     */
+    public long heapSize() {
+        long bytes = (16 + 8L * slots.length) + (16 + 8L * hashes.length) + (16 + 4L * values.length);
+        if (!packed) {
+            bytes += 16 + 2L * keys.length;
+        }
+        return bytes;
+    }
+
+    /** Removes all the windows from this index. */
+    @SuppressWarnings("unchecked")
+    public void clear() {
+        slots = new long[16];
+        hashes = new long[8];
+        values = (V[]) new Object[8];
+        keys = packed ? null : new char[8 * windowLength];
+        size = 0;
+    }
+
+    // Checks if the window of the given entry equals the window at the given
+    // position of the text.
+    private boolean matches(int entry, CharSequence text, int start) {
+        // Packed hashes are equal only for equal windows
+        if (packed) {
+            return true;
+        }
+        int offset = entry * windowLength;
+        for (int i = 0; i < windowLength; i++) {
+            if (keys[offset + i] != text.charAt(start + i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    // Puts the given entry in the first free slot, starting at its home slot.
+    private void insert(long hash, int entry) {
+        long mixed = mix(hash);
+        int mask = slots.length - 1;
+        int slot = homeSlot(mixed, slots.length);
+        while (slots[slot] != 0) {
+            slot = (slot + 1) & mask;
+        }
+        slots[slot] = slot(mixed, entry);
+    }
+
+    // Doubles the capacity of this index, and reinserts all its entries.
+    private void resize() {
+        slots = new long[slots.length * 2];
+        for (int entry = 0; entry < size; entry++) {
+            insert(hashes[entry], entry);
+        }
+    }
+
+    // The hashing and slot layout below are shared with OffHeapLanguageModel,
+    // which keeps the same hash table in direct buffers.
+
+    // Returns the base of the rolling hash of windows of the given length:
+    // 2^16 for packed windows, and MULTIPLIER otherwise.
+    static long hashBase(int windowLength) {
+        return windowLength <= MAX_PACKED_LENGTH ? 1L << 16 : MULTIPLIER;
+    }
+
+    // Returns base^(windowLength - 1), the weight of the oldest character of
+    // a window of the given length.
+    static long oldestWeight(int windowLength) {
+        long base = hashBase(windowLength);
+        long weight = 1;
+        for (int i = 1; i < windowLength; i++) {
+            weight *= base;
+        }
+        return weight;
+    }
+
+    // Returns the hash of the window of the given length that starts at the
+    // given position of the text.
+    static long hash(CharSequence text, int start, int windowLength) {
+        long base = hashBase(windowLength);
+        long h = 0;
+        for (int i = 0; i < windowLength; i++) {
+            h = h * base + text.charAt(start + i);
+        }
+        return h;
+    }
+
+    // Given the hash of a window of the given length, returns the hash of the
+    // next window, given the weight of the oldest character (see oldestWeight).
+    static long roll(long hash, char oldest, char next, int windowLength, long oldestWeight) {
+        if (windowLength == 0) {
+            return 0;
+        }
+        return (hash - oldest * oldestWeight) * hashBase(windowLength) + next;
+    }
+
+    // Returns the given hash multiplied by MULTIPLIER, which spreads all its
+    // bits into the upper ones (Fibonacci hashing).
+    static long mix(long hash) {
+        return hash * MULTIPLIER;
+    }
+
+    // Returns the home slot of a mixed hash in a table with the given number
+    // of slots (a power of two).
+    static int homeSlot(long mixed, int slotCount) {
+        int bits = Integer.numberOfTrailingZeros(slotCount);
+        return (int) (mixed >>> (64 - bits));
+    }
+
+    // Returns the slot of the given entry, whose hash has the given mixed hash:
+    // a fingerprint of the hash (upper 32 bits) and the entry number plus 1.
+    static long slot(long mixed, int entry) {
+        return (mixed << 32) | (entry + 1);
+    }
+
+    // Checks if the fingerprint in the given used slot matches the given mixed hash.
+    static boolean slotMatches(long slot, long mixed) {
+        return (slot & ~ENTRY_MASK) == mixed << 32;
+    }
+
+    // Returns the entry number in the given used slot.
+    static int entryOfSlot(long slot) {
+        return (int) (slot & ENTRY_MASK) - 1;
+    }
+
+    // Returns the entry numbers of the given windows (by entry number), in
+    // the order in which a HashMap iterates them, if it got them in the order
+    // of their entry numbers (see hashMapOrder()). The order is taken from a
+    // real HashMap: it depends on the order of the buckets, and also on when a
+    // HashMap resizes or turns a bucket into a tree, which windows of length 1
+    // (whose String hashes are their char codes) easily make it do.
+    static int[] hashMapOrder(String[] windows) {
+        HashMap<String, Integer> map = new HashMap<String, Integer>();
+        for (int entry = 0; entry < windows.length; entry++) {
+            map.put(windows[entry], entry);
+        }
+        int[] entries = new int[windows.length];
+        int i = 0;
+        for (int entry : map.values()) {
+            entries[i++] = entry;
+        }
+        return entries;
+    }
+}
@@ -0,0 +1,19 @@
+package hw9;
+
+import java.io.File;
+
+/** Locates the corpora that come with the assignment, for the benchmarks. */
+final class Corpora {
+
+    // The directory of the corpora: the repository root, unless the
+    // corpus.dir system property says otherwise
+    private static final String DIRECTORY = System.getProperty("corpus.dir", "..");
+
+    private Corpora() {
+    }
+
+    /** Returns the path of the corpus with the given file name. */
+    static String path(String fileName) {
+        return new File(DIRECTORY, fileName).getPath();
+    }
+}
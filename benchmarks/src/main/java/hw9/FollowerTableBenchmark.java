@@ -0,0 +1,65 @@
+package hw9;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks FollowerTable.update and FollowerTable.indexOf, on tables with
+ * different numbers of followers: small tables are scanned, and larger ones
+ * are found through their index, which is dense for Latin-1 followers (base
+ * '!') and hashed otherwise (base 'Ā', the first char above Latin-1).
+ * Each operation looks for the characters of the table in turn.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FollowerTableBenchmark {
+
+    @Param({"4", "16", "64", "200"})
+    int fanout;
+
+    @Param({"!", "Ā"})
+    char base;
+
+    private FollowerTable table;
+
+    // The next character to look for
+    private int next;
+
+    @Setup
+    public void setup() {
+        table = new FollowerTable();
+        for (int i = 0; i < fanout; i++) {
+            table.update((char) (base + i));
+        }
+    }
+
+    // Returns the next character of the table, in turn.
+    private char nextChar() {
+        next = (next + 1) % fanout;
+        return (char) (base + next);
+    }
+
+    @Benchmark
+    public int update() {
+        return table.update(nextChar());
+    }
+
+    @Benchmark
+    public int indexOf() {
+        return table.indexOf(nextChar());
+    }
+}
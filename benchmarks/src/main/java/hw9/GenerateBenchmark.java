@@ -0,0 +1,54 @@
+package hw9;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks generating texts of 1 KB to 10 MB from a model trained on
+ * originofspecies.txt, with List-based and compact models, and with compact
+ * models that sample with alias tables.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class GenerateBenchmark {
+
+    @Param({"1024", "65536", "1048576", "10485760"})
+    int textLength;
+
+    @Param({"3", "7"})
+    int windowLength;
+
+    // list: List-based, compact: binary search, alias: alias tables
+    @Param({"list", "compact", "alias"})
+    String model;
+
+    private LanguageModel languageModel;
+
+    @Setup
+    public void setup() {
+        languageModel = new LanguageModel(windowLength, 20, !model.equals("list"));
+        if (model.equals("alias")) {
+            languageModel.setAliasSampling(true);
+        }
+        languageModel.train(Corpora.path("originofspecies.txt"));
+    }
+
+    @Benchmark
+    public String generate() {
+        return languageModel.generate("Natural".substring(0, windowLength), textLength);
+    }
+}
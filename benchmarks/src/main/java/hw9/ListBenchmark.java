@@ -0,0 +1,65 @@
+package hw9;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks List.update and List.indexOf, on lists with different numbers of
+ * followers. Each operation looks for the characters of the list in turn, so
+ * on average it walks half of the list.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ListBenchmark {
+
+    @Param({"1", "8", "64"})
+    int fanout;
+
+    private List list;
+
+    // The next character to look for
+    private int next;
+
+    @Setup
+    public void setup() {
+        list = new List();
+        for (int i = 0; i < fanout; i++) {
+            list.update((char) ('!' + i));
+        }
+    }
+
+    // Returns the next character of the list, in turn.
+    private char nextChar() {
+        next = (next + 1) % fanout;
+        return (char) ('!' + next);
+    }
+
+    @Benchmark
+    public void update() {
+        list.update(nextChar());
+    }
+
+    @Benchmark
+    public int indexOf() {
+        return list.indexOf(nextChar());
+    }
+
+    @Benchmark
+    public int indexOfMissing() {
+        return list.indexOf('ÿ');
+    }
+}
@@ -0,0 +1,74 @@
+package hw9;
+
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks generating texts from many threads at once, from a single model
+ * trained on originofspecies.txt: with the shared generator of the model, and
+ * with a random stream per thread. Run with increasing thread counts, e.g.
+ *   java -jar target/benchmarks.jar ParallelGenerateBenchmark -t 1,2,4,8
+ * The throughput of the per-thread streams should grow with the number of cores.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+public class ParallelGenerateBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Model {
+
+        @Param({"1024"})
+        int textLength;
+
+        @Param({"7"})
+        int windowLength;
+
+        LanguageModel model;
+
+        // Gives each thread its own stream id
+        final AtomicInteger nextStream = new AtomicInteger();
+
+        @Setup
+        public void setup() {
+            model = new LanguageModel(windowLength, 20, true);
+            model.train(Corpora.path("originofspecies.txt"));
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Stream {
+
+        SplittableRandom random;
+
+        @Setup
+        public void setup(Model model) {
+            random = model.model.randomStream(model.nextStream.getAndIncrement());
+        }
+    }
+
+    @Benchmark
+    public String sharedGenerator(Model model) {
+        return model.model.generate("Natural".substring(0, model.windowLength), model.textLength);
+    }
+
+    @Benchmark
+    public String streamPerThread(Model model, Stream stream) {
+        return model.model.generate("Natural".substring(0, model.windowLength), model.textLength,
+                stream.random);
+    }
+}
@@ -0,0 +1,43 @@
+package hw9;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks trainParallel on originofspecies.txt with 1 to 8 threads. The
+ * speedup of each thread count is its time relative to a single thread (and
+ * to TrainBenchmark.train, which trains without splitting the corpus).
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class ParallelTrainBenchmark {
+
+    @Param({"3", "7", "10"})
+    int windowLength;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    @Param({"1", "2", "4", "8"})
+    int threads;
+
+    @Benchmark
+    public LanguageModel trainParallel() {
+        LanguageModel model = new LanguageModel(windowLength, 20, compact);
+        model.trainParallel(Corpora.path("originofspecies.txt"), threads);
+        return model;
+    }
+}
@@ -0,0 +1,98 @@
+package hw9;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks calculateProbabilities and getRandomChar, on windows with
+ * different numbers of followers with random counts, for every way that a
+ * model can store and sample its followers.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class SamplingBenchmark {
+
+    @Param({"1", "4", "16", "64", "256"})
+    int fanout;
+
+    private List list;
+    private FollowerTable table;
+    private FollowerTable lazyTable;
+
+    // One model per sampler: List scan, binary search, alias table, and counts
+    private LanguageModel listModel;
+    private LanguageModel searchModel;
+    private LanguageModel aliasModel;
+    private LanguageModel lazyModel;
+
+    @Setup
+    public void setup() {
+        listModel = new LanguageModel(1, 20);
+        searchModel = new LanguageModel(1, 20, true);
+        aliasModel = new LanguageModel(1, 20, true);
+        aliasModel.setAliasSampling(true);
+        lazyModel = new LanguageModel(1, 20, true);
+        lazyModel.setLazyProbabilities(true);
+
+        Random random = new Random(fanout);
+        list = new List();
+        table = new FollowerTable();
+        lazyTable = new FollowerTable(false);
+        for (int i = 0; i < fanout; i++) {
+            int count = 1 + random.nextInt(100);
+            list.add((char) i, count);
+            table.add((char) i, count);
+            lazyTable.add((char) i, count);
+        }
+        listModel.calculateProbabilities(list);
+        table.calculateProbabilities();
+        table.buildAliasTable();
+    }
+
+    @Benchmark
+    public List calculateProbabilities() {
+        listModel.calculateProbabilities(list);
+        return list;
+    }
+
+    @Benchmark
+    public FollowerTable calculateProbabilitiesTable() {
+        table.calculateProbabilities();
+        return table;
+    }
+
+    @Benchmark
+    public char getRandomCharList() {
+        return listModel.getRandomChar(list);
+    }
+
+    @Benchmark
+    public char getRandomCharBinarySearch() {
+        return searchModel.getRandomChar(table);
+    }
+
+    @Benchmark
+    public char getRandomCharAlias() {
+        return aliasModel.getRandomChar(table);
+    }
+
+    @Benchmark
+    public char getRandomCharLazy() {
+        return lazyModel.getRandomChar(lazyTable);
+    }
+}
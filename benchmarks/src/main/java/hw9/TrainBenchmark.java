@@ -0,0 +1,49 @@
+package hw9;
+
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks training a model from scratch on the bundled corpora, for window
+ * lengths 1 to 10, with List-based and compact models.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class TrainBenchmark {
+
+    @Param({"shakespeareinlove.txt", "originofspecies.txt"})
+    String corpus;
+
+    @Param({"1", "2", "3", "4", "5", "6", "7", "8", "9", "10"})
+    int windowLength;
+
+    @Param({"false", "true"})
+    boolean compact;
+
+    @Benchmark
+    public LanguageModel train() {
+        LanguageModel model = new LanguageModel(windowLength, 20, compact);
+        model.train(Corpora.path(corpus));
+        return model;
+    }
+
+    @Benchmark
+    public LanguageModel trainStream() {
+        LanguageModel model = new LanguageModel(windowLength, 20, compact);
+        model.trainStream(Corpora.path(corpus));
+        return model;
+    }
+}
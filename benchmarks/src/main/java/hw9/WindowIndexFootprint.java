@@ -0,0 +1,57 @@
+package hw9;
+
+import java.util.HashMap;
+
+/**
+ * Compares the heap footprint of a HashMap keyed by window Strings and of a
+ * WindowIndex, each holding all the windows of a corpus, with a single shared
+ * value, so only the cost of the keys and the tables is measured.
+ * Usage: java -cp target/benchmarks.jar hw9.WindowIndexFootprint originofspecies.txt 3 7 12
+ */
+public class WindowIndexFootprint {
+
+    public static void main(String[] args) {
+        String text = new In(Corpora.path(args[0])).readAll().replace("\r", "");
+        Object value = new Object();
+        for (int a = 1; a < args.length; a++) {
+            int windowLength = Integer.parseInt(args[a]);
+
+            long before = usedMemory();
+            HashMap<String, Object> map = new HashMap<String, Object>();
+            for (int i = 0; i + windowLength <= text.length(); i++) {
+                map.put(text.substring(i, i + windowLength), value);
+            }
+            long mapBytes = usedMemory() - before;
+
+            before = usedMemory();
+            WindowIndex<Object> index = new WindowIndex<Object>(windowLength);
+            long hash = index.hash(text, 0);
+            for (int i = 0; i + windowLength <= text.length(); i++) {
+                if (index.get(hash, text, i) == null) {
+                    index.put(hash, text.substring(i, i + windowLength), value);
+                }
+                if (i + windowLength < text.length()) {
+                    hash = index.roll(hash, text.charAt(i), text.charAt(i + windowLength));
+                }
+            }
+            long indexBytes = usedMemory() - before;
+
+            System.out.printf("windowLength %2d, %7d windows: HashMap %6d KB (%3d B/window),"
+                    + " WindowIndex %6d KB (%3d B/window)%n", windowLength, map.size(),
+                    mapBytes / 1024, mapBytes / map.size(), indexBytes / 1024, indexBytes / index.size());
+            // Keeps both maps reachable until both were measured
+            if (map.size() != index.size()) {
+                throw new IllegalStateException("Different windows");
+            }
+        }
+    }
+
+    // Returns the number of bytes currently used on the heap, after garbage collection.
+    private static long usedMemory() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
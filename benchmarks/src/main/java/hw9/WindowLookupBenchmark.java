@@ -0,0 +1,97 @@
+package hw9;
+
+import java.util.HashMap;
+import java.util.concurrent.TimeUnit;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Benchmarks looking up the followers of every window of a text, as train and
+ * generate do: in a HashMap keyed by window Strings (a substring per lookup),
+ * and in a WindowIndex (a rolled hash per lookup). Both maps hold all the
+ * windows of originofspecies.txt, and each operation is a single lookup.
+ * See WindowIndexFootprint for the memory of the two maps.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(value = 1, jvmArgsAppend = "-Xmx4g")
+@State(Scope.Benchmark)
+public class WindowLookupBenchmark {
+
+    // The number of lookups per invocation
+    private static final int LOOKUPS = 1 << 16;
+
+    @Param({"3", "7", "12"})
+    int windowLength;
+
+    private String text;
+    private HashMap<String, Object> map;
+    private WindowIndex<Object> index;
+
+    // The position of the first window of the next invocation
+    private int start;
+
+    @Setup
+    public void setup() {
+        text = new In(Corpora.path("originofspecies.txt")).readAll().replace("\r", "");
+        map = new HashMap<String, Object>();
+        index = new WindowIndex<Object>(windowLength);
+        for (int i = 0; i + windowLength <= text.length(); i++) {
+            String window = text.substring(i, i + windowLength);
+            if (map.put(window, window) == null) {
+                index.put(index.hash(window, 0), window, window);
+            }
+        }
+    }
+
+    // Returns the position of the first window of an invocation, so that
+    // consecutive invocations look up different parts of the text.
+    private int nextStart() {
+        int first = start;
+        start += LOOKUPS;
+        if (start + LOOKUPS + windowLength > text.length()) {
+            start = 0;
+        }
+        return first;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int hashMap() {
+        int found = 0;
+        int first = nextStart();
+        for (int i = first; i < first + LOOKUPS; i++) {
+            if (map.get(text.substring(i, i + windowLength)) != null) {
+                found++;
+            }
+        }
+        return found;
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(LOOKUPS)
+    public int windowIndex() {
+        int found = 0;
+        int first = nextStart();
+        long hash = index.hash(text, first);
+        for (int i = first; i < first + LOOKUPS; i++) {
+            if (index.get(hash, text, i) != null) {
+                found++;
+            }
+            hash = index.roll(hash, text.charAt(i), text.charAt(i + windowLength));
+        }
+        return found;
+    }
+}